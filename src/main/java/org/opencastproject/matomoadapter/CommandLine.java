@@ -41,11 +41,14 @@ public final class CommandLine {
 
   // Constants for the options so we don't repeat ourselves
   private static final String CONFIG_FILE = "config-file";
+  private static final String REBUILD_SEGMENT_STORE = "rebuild-segment-store";
 
   private final Path configFile;
+  private final boolean rebuildSegmentStore;
 
-  private CommandLine(final Path configFile) {
+  private CommandLine(final Path configFile, final boolean rebuildSegmentStore) {
     this.configFile = configFile;
+    this.rebuildSegmentStore = rebuildSegmentStore;
   }
 
   public static CommandLine parse(final String[] args) {
@@ -57,6 +60,12 @@ public final class CommandLine {
             .hasArg(true)
             .argName("config-file")
             .build());
+    options.addOption(Option
+            .builder()
+            .longOpt(REBUILD_SEGMENT_STORE)
+            .desc("Seed or repair the local segment store or segment filter from InfluxDB, then exit")
+            .hasArg(false)
+            .build());
     final CommandLineParser parser = new DefaultParser();
     org.apache.commons.cli.CommandLine parsed = null;
     try {
@@ -66,10 +75,13 @@ public final class CommandLine {
       System.exit(ExitStatuses.INVALID_COMMAND_LINE_ARGS);
     }
     return new CommandLine(
-            Paths.get(parsed.getOptionValue(CONFIG_FILE)));
+            Paths.get(parsed.getOptionValue(CONFIG_FILE)),
+            parsed.hasOption(REBUILD_SEGMENT_STORE));
   }
 
   public Path getConfigFile() {
     return this.configFile;
   }
+
+  public boolean isRebuildSegmentStore() { return this.rebuildSegmentStore; }
 }
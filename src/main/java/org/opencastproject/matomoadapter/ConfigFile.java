@@ -30,9 +30,12 @@ import org.slf4j.LoggerFactory;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -51,12 +54,22 @@ public final class ConfigFile {
   private static final String INFLUXDB_PASSWORD = "influxdb.password";
   private static final String INFLUXDB_RETENTION_POLICY = "influxdb.retention-policy";
   private static final String INFLUXDB_LOG_LEVEL = "influxdb.log-level";
+  private static final String INFLUXDB_GZIP = "influxdb.gzip";
+  private static final String INFLUXDB_CHUNK_SIZE = "influxdb.chunk-size";
   // Matomo options
   private static final String MATOMO_URI = "matomo.uri";
   private static final String MATOMO_SITEID = "matomo.siteid";
   private static final String MATOMO_TOKEN = "matomo.token";
   private static final String MATOMO_RATE = "matomo.rate-limit";
   private static final String MATOMO_TIMEOUT = "matomo.timeout";
+  private static final String MATOMO_LOG_BODIES = "matomo.log-bodies";
+  private static final String MATOMO_EVENTID_MARKERS = "matomo.eventid-markers";
+  private static final String MATOMO_PAGE_SIZE = "matomo.page-size";
+  private static final String MATOMO_PAGE_CONCURRENCY = "matomo.page-concurrency";
+  private static final String MATOMO_PAGE_RETRIES = "matomo.page-retries";
+  private static final String MATOMO_CACHE_DIR = "matomo.cache-dir";
+  private static final String MATOMO_CACHE_MAX_MB = "matomo.cache-max-mb";
+  private static final String MATOMO_CACHE_HORIZON_DAYS = "matomo.cache-horizon-days";
   // Opencast options
   private static final String OPENCAST_URI = "opencast.external-api.uri";
   private static final String OPENCAST_USER = "opencast.external-api.user";
@@ -66,10 +79,43 @@ public final class ConfigFile {
   private static final String OPENCAST_EXPIRATION_DURATION = "opencast.external-api.cache-expiration-duration";
   private static final String OPENCAST_RATE = "opencast.rate-limit";
   private static final String OPENCAST_TIMEOUT = "opencast.timeout";
+  private static final String OPENCAST_LOG_BODIES = "opencast.log-bodies";
+  private static final String OPENCAST_HEDGE_PERCENTILE = "opencast.hedge-percentile";
+  private static final String OPENCAST_HEDGE_BUDGET = "opencast.hedge-budget";
   // Path to last date file
   private static final String ADAPTER_PATH_DATE = "adapter.date-file";
   private static final String ADAPTER_LOG_CONFIGURATION_FILE = "adapter.log-configuration-file";
   private static final String ADAPTER_TIME_INTERVAL = "adapter.time-interval";
+  private static final String ADAPTER_HTTP_TIMING = "adapter.http-timing";
+  private static final String ADAPTER_SEGMENT_STORE = "adapter.segment-store";
+  private static final String ADAPTER_SEGMENT_FILTER = "adapter.segment-filter";
+  private static final String ADAPTER_SEGMENT_FILTER_SIZE = "adapter.segment-filter-size";
+  private static final String ADAPTER_WRITE_DIGESTS = "adapter.write-digests";
+  private static final String ADAPTER_WRITE_DIGESTS_SIZE = "adapter.write-digests-size";
+  private static final String ADAPTER_SNAPSHOT_DIR = "adapter.snapshot-dir";
+  private static final String ADAPTER_RESYNC_DAYS = "adapter.resync-days";
+  private static final String ADAPTER_RESYNC_CONCURRENCY = "adapter.resync-concurrency";
+  private static final String ADAPTER_ROLLUPS = "adapter.rollups";
+  private static final String ADAPTER_PERIOD_ROLLUPS = "adapter.period-rollups";
+  private static final String ADAPTER_SEGMENT_BUCKETS = "adapter.segment-buckets";
+  private static final String ADAPTER_SEGMENT_JSON = "adapter.segment-json";
+  private static final String ADAPTER_SEGMENT_ENCODING = "adapter.segment-encoding";
+  private static final String ADAPTER_SPILL_THRESHOLD = "adapter.spill-threshold";
+  private static final String ADAPTER_SPILL_DIR = "adapter.spill-dir";
+  private static final String ADAPTER_TRAFFIC_RECORD = "adapter.traffic-record";
+  private static final String ADAPTER_TRAFFIC_REPLAY = "adapter.traffic-replay";
+  private static final String ADAPTER_TRAFFIC_REPLAY_LATENCY = "adapter.traffic-replay-latency";
+  private static final String ADAPTER_DAEMON = "adapter.daemon";
+  private static final String ADAPTER_HEALTH_CHECK_INTERVAL = "adapter.health-check-interval";
+  private static final String ADAPTER_INCREMENTAL_INTERVAL = "adapter.incremental-interval";
+  private static final String ADAPTER_DAY_JOURNAL = "adapter.day-journal";
+  private static final String ADAPTER_CHECKPOINT_SIZE = "adapter.checkpoint-size";
+  private static final String ADAPTER_SHARD_COUNT = "adapter.shard-count";
+  private static final String ADAPTER_SHARD_INDEX = "adapter.shard-index";
+  private static final String ADAPTER_SHARD_DIR = "adapter.shard-dir";
+  private static final String ADAPTER_SEGMENT_MIN_PLAYS = "adapter.segment-min-plays";
+  private static final String ADAPTER_SEGMENT_TOP = "adapter.segment-top";
+  private static final String ADAPTER_SEGMENT_DEFERRALS = "adapter.segment-deferrals";
   // Config objects
   private final InfluxDBConfig influxDBConfig;
   private final MatomoConfig matomoConfig;
@@ -77,6 +123,36 @@ public final class ConfigFile {
   private final Path lastDatePath;
   private final Path logConfigurationFile;
   private final int interval;
+  private final boolean httpTiming;
+  private final Path segmentStore;
+  private final Path segmentFilter;
+  private final int segmentFilterSize;
+  private final Path writeDigests;
+  private final int writeDigestsSize;
+  private final Path snapshotDir;
+  private final int resyncDays;
+  private final int resyncConcurrency;
+  private final boolean rollups;
+  private final boolean periodRollups;
+  private final int segmentBuckets;
+  private final boolean segmentJson;
+  private final boolean segmentCompact;
+  private final int spillThreshold;
+  private final Path spillDir;
+  private final Path trafficRecord;
+  private final Path trafficReplay;
+  private final boolean trafficReplayLatency;
+  private final boolean daemon;
+  private final int healthCheckInterval;
+  private final int incrementalInterval;
+  private final Path dayJournal;
+  private final int checkpointSize;
+  private final int shardCount;
+  private final int shardIndex;
+  private final Path shardDir;
+  private final int segmentMinPlays;
+  private final int segmentTop;
+  private final Path segmentDeferrals;
 
   private ConfigFile(
           final InfluxDBConfig influxDBConfig,
@@ -84,13 +160,73 @@ public final class ConfigFile {
           final OpencastConfig opencastConfig,
           final Path lastDatePath,
           final Path logConfigurationFile,
-          final int interval) {
+          final int interval,
+          final boolean httpTiming,
+          final Path segmentStore,
+          final Path segmentFilter,
+          final int segmentFilterSize,
+          final Path writeDigests,
+          final int writeDigestsSize,
+          final Path snapshotDir,
+          final int resyncDays,
+          final int resyncConcurrency,
+          final boolean rollups,
+          final boolean periodRollups,
+          final int segmentBuckets,
+          final boolean segmentJson,
+          final boolean segmentCompact,
+          final int spillThreshold,
+          final Path spillDir,
+          final Path trafficRecord,
+          final Path trafficReplay,
+          final boolean trafficReplayLatency,
+          final boolean daemon,
+          final int healthCheckInterval,
+          final int incrementalInterval,
+          final Path dayJournal,
+          final int checkpointSize,
+          final int shardCount,
+          final int shardIndex,
+          final Path shardDir,
+          final int segmentMinPlays,
+          final int segmentTop,
+          final Path segmentDeferrals) {
     this.influxDBConfig = influxDBConfig;
     this.matomoConfig = matomoConfig;
     this.opencastConfig = opencastConfig;
     this.lastDatePath = lastDatePath;
     this.logConfigurationFile = logConfigurationFile;
     this.interval = interval;
+    this.httpTiming = httpTiming;
+    this.segmentStore = segmentStore;
+    this.segmentFilter = segmentFilter;
+    this.segmentFilterSize = segmentFilterSize;
+    this.writeDigests = writeDigests;
+    this.writeDigestsSize = writeDigestsSize;
+    this.snapshotDir = snapshotDir;
+    this.resyncDays = resyncDays;
+    this.resyncConcurrency = resyncConcurrency;
+    this.rollups = rollups;
+    this.periodRollups = periodRollups;
+    this.segmentBuckets = segmentBuckets;
+    this.segmentJson = segmentJson;
+    this.segmentCompact = segmentCompact;
+    this.spillThreshold = spillThreshold;
+    this.spillDir = spillDir;
+    this.trafficRecord = trafficRecord;
+    this.trafficReplay = trafficReplay;
+    this.trafficReplayLatency = trafficReplayLatency;
+    this.daemon = daemon;
+    this.healthCheckInterval = healthCheckInterval;
+    this.incrementalInterval = incrementalInterval;
+    this.dayJournal = dayJournal;
+    this.checkpointSize = checkpointSize;
+    this.shardCount = shardCount;
+    this.shardIndex = shardIndex;
+    this.shardDir = shardDir;
+    this.segmentMinPlays = segmentMinPlays;
+    this.segmentTop = segmentTop;
+    this.segmentDeferrals = segmentDeferrals;
   }
 
   /**
@@ -119,17 +255,163 @@ public final class ConfigFile {
       LOGGER.error("Error parsing config file \"{}\": {} must be specified", p, ADAPTER_PATH_DATE);
       System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
     }
-    final Path pathToLastDate = Path.of(pathToLastDateRaw);
     final String logConfigurationFile = parsed.getProperty(ADAPTER_LOG_CONFIGURATION_FILE);
     final int timeInterval = checkIntProperty(ADAPTER_TIME_INTERVAL, "1", parsed, p);
+    final boolean httpTiming = checkBoolProperty(ADAPTER_HTTP_TIMING, "false", parsed, p);
+    final String segmentStore = parsed.getProperty(ADAPTER_SEGMENT_STORE);
+    final String segmentFilter = parsed.getProperty(ADAPTER_SEGMENT_FILTER);
+    final int segmentFilterSize = checkIntProperty(ADAPTER_SEGMENT_FILTER_SIZE, "1000000", parsed, p);
+    final String writeDigests = parsed.getProperty(ADAPTER_WRITE_DIGESTS);
+    final int writeDigestsSize = checkIntProperty(ADAPTER_WRITE_DIGESTS_SIZE, "500000", parsed, p);
+    final String snapshotDir = parsed.getProperty(ADAPTER_SNAPSHOT_DIR);
+    final int resyncDays = checkIntProperty(ADAPTER_RESYNC_DAYS, "0", parsed, p);
+    if (resyncDays > 0 && snapshotDir == null) {
+      LOGGER.error("Error parsing config file \"{}\": {} requires {}", p, ADAPTER_RESYNC_DAYS, ADAPTER_SNAPSHOT_DIR);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    // A resync of a cached day would get the first fetch's response back, not Matomo's re-archived numbers
+    if (resyncDays > 0 && parsed.getProperty(MATOMO_CACHE_DIR) != null
+            && resyncDays >= checkIntProperty(MATOMO_CACHE_HORIZON_DAYS, "3", parsed, p)) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be greater than {}", p, MATOMO_CACHE_HORIZON_DAYS,
+              ADAPTER_RESYNC_DAYS);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final int resyncConcurrency = checkIntProperty(ADAPTER_RESYNC_CONCURRENCY, "2", parsed, p);
+    if (resyncConcurrency == 0) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be at least 1", p, ADAPTER_RESYNC_CONCURRENCY);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final boolean rollups = checkBoolProperty(ADAPTER_ROLLUPS, "true", parsed, p);
+    final boolean periodRollups = checkBoolProperty(ADAPTER_PERIOD_ROLLUPS, "false", parsed, p);
+    final int segmentBuckets = checkIntProperty(ADAPTER_SEGMENT_BUCKETS, "0", parsed, p);
+    final boolean segmentJson = checkBoolProperty(ADAPTER_SEGMENT_JSON, "true", parsed, p);
+    if (!segmentJson && segmentBuckets == 0) {
+      LOGGER.error("Error parsing config file \"{}\": {} can only be disabled with {} set", p, ADAPTER_SEGMENT_JSON,
+              ADAPTER_SEGMENT_BUCKETS);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final String segmentEncoding = parsed.getProperty(ADAPTER_SEGMENT_ENCODING, "json").trim();
+    if (!segmentEncoding.equals("json") && !segmentEncoding.equals("compact")) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be either \"json\" or \"compact\"", p,
+              ADAPTER_SEGMENT_ENCODING);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final int spillThreshold = checkIntProperty(ADAPTER_SPILL_THRESHOLD, "0", parsed, p);
+    final String spillDir = parsed.getProperty(ADAPTER_SPILL_DIR, System.getProperty("java.io.tmpdir"));
+    final String trafficRecord = parsed.getProperty(ADAPTER_TRAFFIC_RECORD);
+    final String trafficReplay = parsed.getProperty(ADAPTER_TRAFFIC_REPLAY);
+    if (trafficRecord != null && trafficReplay != null) {
+      LOGGER.error("Error parsing config file \"{}\": {} and {} can't be used together", p, ADAPTER_TRAFFIC_RECORD,
+              ADAPTER_TRAFFIC_REPLAY);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final boolean trafficReplayLatency = checkBoolProperty(ADAPTER_TRAFFIC_REPLAY_LATENCY, "false", parsed, p);
+    final boolean daemon = checkBoolProperty(ADAPTER_DAEMON, "false", parsed, p);
+    final int healthCheckInterval = checkIntProperty(ADAPTER_HEALTH_CHECK_INTERVAL, "60", parsed, p);
+    if (daemon && healthCheckInterval < 1) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be at least 1", p, ADAPTER_HEALTH_CHECK_INTERVAL);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final int incrementalInterval = checkIntProperty(ADAPTER_INCREMENTAL_INTERVAL, "0", parsed, p);
+    if (incrementalInterval > 0 && snapshotDir == null) {
+      LOGGER.error("Error parsing config file \"{}\": {} requires {}", p, ADAPTER_INCREMENTAL_INTERVAL,
+              ADAPTER_SNAPSHOT_DIR);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final String dayJournal = parsed.getProperty(ADAPTER_DAY_JOURNAL);
+    final int checkpointSize = checkIntProperty(ADAPTER_CHECKPOINT_SIZE, "1000", parsed, p);
+    if (checkpointSize < 1) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be at least 1", p, ADAPTER_CHECKPOINT_SIZE);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final int shardCount = checkIntProperty(ADAPTER_SHARD_COUNT, "1", parsed, p);
+    final int shardIndex = checkIntProperty(ADAPTER_SHARD_INDEX, "0", parsed, p);
+    final String shardDir = parsed.getProperty(ADAPTER_SHARD_DIR);
+    if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be at least 1 and {} between 0 and {} - 1", p,
+              ADAPTER_SHARD_COUNT, ADAPTER_SHARD_INDEX, ADAPTER_SHARD_COUNT);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    if (shardCount > 1 && shardDir == null) {
+      LOGGER.error("Error parsing config file \"{}\": {} requires {}", p, ADAPTER_SHARD_COUNT, ADAPTER_SHARD_DIR);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final int segmentMinPlays = checkIntProperty(ADAPTER_SEGMENT_MIN_PLAYS, "0", parsed, p);
+    final int segmentTop = checkIntProperty(ADAPTER_SEGMENT_TOP, "0", parsed, p);
+    if (segmentMinPlays < 0 || segmentTop < 0) {
+      LOGGER.error("Error parsing config file \"{}\": {} and {} can't be negative", p, ADAPTER_SEGMENT_MIN_PLAYS,
+              ADAPTER_SEGMENT_TOP);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final String segmentDeferrals = parsed.getProperty(ADAPTER_SEGMENT_DEFERRALS);
+    // A replay starts from empty local state in a scratch directory, the recording's state is left untouched
+    final Path replayState = trafficReplay != null ? createReplayState(p) : null;
 
     // Initialized the ConfigFile Object with filled in properties for InfluxDB, Matomo and Opencast
     return new ConfigFile(initInfluxDB(parsed, p),
                           initMatomo(parsed, p),
                           initOpencast(parsed, p),
-                          pathToLastDate,
+                          statePath(replayState, pathToLastDateRaw),
                           logConfigurationFile != null ? Path.of(logConfigurationFile) : null,
-                          timeInterval);
+                          timeInterval,
+                          httpTiming,
+                          statePath(replayState, segmentStore),
+                          statePath(replayState, segmentFilter),
+                          segmentFilterSize,
+                          statePath(replayState, writeDigests),
+                          writeDigestsSize,
+                          statePath(replayState, snapshotDir),
+                          resyncDays,
+                          resyncConcurrency,
+                          rollups,
+                          periodRollups,
+                          segmentBuckets,
+                          segmentJson,
+                          segmentEncoding.equals("compact"),
+                          spillThreshold,
+                          Path.of(spillDir),
+                          trafficRecord != null ? Path.of(trafficRecord) : null,
+                          trafficReplay != null ? Path.of(trafficReplay) : null,
+                          trafficReplayLatency,
+                          daemon,
+                          healthCheckInterval,
+                          incrementalInterval,
+                          statePath(replayState, dayJournal),
+                          checkpointSize,
+                          shardCount,
+                          shardIndex,
+                          statePath(replayState, shardDir),
+                          segmentMinPlays,
+                          segmentTop,
+                          statePath(replayState, segmentDeferrals));
+  }
+
+  /**
+   * @param replayState Scratch directory of a replay, null if not replaying
+   * @param path Configured path of a local state file or directory, may be null
+   * @return The path, moved into the scratch directory while replaying
+   */
+  private static Path statePath(final Path replayState, final String path) {
+    if (path == null)
+      return null;
+    return replayState != null ? replayState.resolve(Path.of(path).getFileName()) : Path.of(path);
+  }
+
+  /**
+   * Create the scratch directory for the local state of a replay.
+   *
+   * @param p Path to config file
+   * @return The new, empty directory
+   */
+  private static Path createReplayState(final Path p) {
+    try {
+      return Files.createTempDirectory("matomo-adapter-replay");
+    } catch (final IOException e) {
+      LOGGER.error("Error parsing config file \"{}\": can't create a directory for the replay: {}", p,
+              e.getMessage());
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    }
+    return null;
   }
 
   /**
@@ -160,6 +442,25 @@ public final class ConfigFile {
     return value;
   }
 
+  /**
+   * Helper method to parse boolean values. Only "true" and "false" are accepted.
+   *
+   * @param name Name of the field
+   * @param def Default value
+   * @param parsed Properties object
+   * @param p Path to config file
+   * @return The parsed value
+   */
+  private static boolean checkBoolProperty(final String name, final String def, final Properties parsed,
+                                           final Path p) {
+    final String value = parsed.getProperty(name, def).trim();
+    if (!value.equals("true") && !value.equals("false")) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be either \"true\" or \"false\"", p, name);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    return Boolean.parseBoolean(value);
+  }
+
   /**
    * Parses config file and initializes Opencast config object.
    *
@@ -193,11 +494,20 @@ public final class ConfigFile {
     final int opencastCacheSize = checkIntProperty(OPENCAST_CACHE_SIZE, "10000", parsed, p);
     final int opencastRateLimit = checkIntProperty(OPENCAST_RATE, "0", parsed, p);
     final int opencastTimeout = checkIntProperty(OPENCAST_TIMEOUT, "10", parsed, p);
+    final boolean opencastLogBodies = checkBoolProperty(OPENCAST_LOG_BODIES, "false", parsed, p);
+    final int opencastHedgePercentile = checkIntProperty(OPENCAST_HEDGE_PERCENTILE, "0", parsed, p);
+    final int opencastHedgeBudget = checkIntProperty(OPENCAST_HEDGE_BUDGET, "5", parsed, p);
+    if (opencastHedgePercentile >= 100 || opencastHedgeBudget > 100) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be below 100 and {} at most 100", p,
+              OPENCAST_HEDGE_PERCENTILE, OPENCAST_HEDGE_BUDGET);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
 
     // Create new Opencast config object
     return opencastHost != null && opencastUser != null && opencastPassword != null ?
             new OpencastConfig(opencastHost, opencastUser, opencastPassword, opencastOrgaId,
-                    opencastCacheSize, opencastCacheExpirationDuration, opencastRateLimit, opencastTimeout) :
+                    opencastCacheSize, opencastCacheExpirationDuration, opencastRateLimit, opencastTimeout,
+                    opencastLogBodies, opencastHedgePercentile, opencastHedgeBudget) :
             null;
   }
 
@@ -216,10 +526,34 @@ public final class ConfigFile {
     final int matomoSiteId = checkIntProperty(MATOMO_SITEID, "-1", parsed, p);
     final int matomoRateLimit = checkIntProperty(MATOMO_RATE, "0", parsed, p);
     final int matomoTimeout = checkIntProperty(MATOMO_TIMEOUT, "10", parsed, p);
+    final boolean matomoLogBodies = checkBoolProperty(MATOMO_LOG_BODIES, "false", parsed, p);
+    final int matomoPageSize = checkIntProperty(MATOMO_PAGE_SIZE, "1000", parsed, p);
+    final int matomoPageConcurrency = checkIntProperty(MATOMO_PAGE_CONCURRENCY, "4", parsed, p);
+    if (matomoPageConcurrency == 0) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be at least 1", p, MATOMO_PAGE_CONCURRENCY);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
+    final int matomoPageRetries = checkIntProperty(MATOMO_PAGE_RETRIES, "2", parsed, p);
+    final String matomoCacheDir = parsed.getProperty(MATOMO_CACHE_DIR);
+    final int matomoCacheMaxMb = checkIntProperty(MATOMO_CACHE_MAX_MB, "1024", parsed, p);
+    final int matomoCacheHorizon = checkIntProperty(MATOMO_CACHE_HORIZON_DAYS, "3", parsed, p);
+    // URL fragments directly preceding the eventId in video labels
+    final List<String> matomoMarkers = new ArrayList<>();
+    for (final String marker : parsed.getProperty(MATOMO_EVENTID_MARKERS, "id=,player/,/play/").split(",")) {
+      if (!marker.trim().isEmpty())
+        matomoMarkers.add(marker.trim());
+    }
+    if (matomoMarkers.isEmpty()) {
+      LOGGER.error("Error parsing config file \"{}\": {} cannot be empty", p, MATOMO_EVENTID_MARKERS);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
 
     // Create new Matomo config object
     return matomoHost != null && matomoToken != null ?
-            new MatomoConfig(matomoHost, String.valueOf(matomoSiteId), matomoToken, matomoRateLimit, matomoTimeout) :
+            new MatomoConfig(matomoHost, String.valueOf(matomoSiteId), matomoToken, matomoRateLimit, matomoTimeout,
+                    matomoLogBodies, matomoMarkers, matomoPageSize, matomoPageConcurrency, matomoPageRetries,
+                    matomoCacheDir != null ? Path.of(matomoCacheDir) : null, matomoCacheMaxMb * 1024L * 1024L,
+                    matomoCacheHorizon) :
             null;
   }
 
@@ -247,13 +581,20 @@ public final class ConfigFile {
               "Invalid InfluxDB log level \"" + influxDbLogLevel + "\": available are \"debug\" and \"info\"");
       System.exit(ExitStatuses.INVALID_INFLUXDB_CONFIG);
     }
+    final int influxDbChunkSize = checkIntProperty(INFLUXDB_CHUNK_SIZE, "10000", parsed, p);
+    if (influxDbChunkSize == 0) {
+      LOGGER.error("Error parsing config file \"{}\": {} must be at least 1", p, INFLUXDB_CHUNK_SIZE);
+      System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+    }
 
     return new InfluxDBConfig(parsed.getProperty(INFLUXDB_URI),
             influxDbUser,
             parsed.getProperty(INFLUXDB_PASSWORD),
             influxDbDbName,
             parsed.getProperty(INFLUXDB_RETENTION_POLICY),
-            parsed.getProperty(INFLUXDB_LOG_LEVEL, "info"));
+            parsed.getProperty(INFLUXDB_LOG_LEVEL, "info"),
+            checkBoolProperty(INFLUXDB_GZIP, "false", parsed, p),
+            influxDbChunkSize);
   }
 
   public InfluxDBConfig getInfluxDBConfig() {
@@ -271,4 +612,64 @@ public final class ConfigFile {
   }
 
   public int getInterval() { return this.interval; }
+
+  public boolean isHttpTiming() { return this.httpTiming; }
+
+  public Path getSegmentStore() { return this.segmentStore; }
+
+  public Path getSegmentFilter() { return this.segmentFilter; }
+
+  public int getSegmentFilterSize() { return this.segmentFilterSize; }
+
+  public Path getWriteDigests() { return this.writeDigests; }
+
+  public int getWriteDigestsSize() { return this.writeDigestsSize; }
+
+  public Path getSnapshotDir() { return this.snapshotDir; }
+
+  public int getResyncDays() { return this.resyncDays; }
+
+  public int getResyncConcurrency() { return this.resyncConcurrency; }
+
+  public boolean isRollups() { return this.rollups; }
+
+  public boolean isPeriodRollups() { return this.periodRollups; }
+
+  public int getSegmentBuckets() { return this.segmentBuckets; }
+
+  public boolean isSegmentJson() { return this.segmentJson; }
+
+  public boolean isSegmentCompact() { return this.segmentCompact; }
+
+  public int getSpillThreshold() { return this.spillThreshold; }
+
+  public Path getSpillDir() { return this.spillDir; }
+
+  public Path getTrafficRecord() { return this.trafficRecord; }
+
+  public Path getTrafficReplay() { return this.trafficReplay; }
+
+  public boolean isTrafficReplayLatency() { return this.trafficReplayLatency; }
+
+  public boolean isDaemon() { return this.daemon; }
+
+  public int getHealthCheckInterval() { return this.healthCheckInterval; }
+
+  public int getIncrementalInterval() { return this.incrementalInterval; }
+
+  public Path getDayJournal() { return this.dayJournal; }
+
+  public int getCheckpointSize() { return this.checkpointSize; }
+
+  public int getShardCount() { return this.shardCount; }
+
+  public int getShardIndex() { return this.shardIndex; }
+
+  public Path getShardDir() { return this.shardDir; }
+
+  public int getSegmentMinPlays() { return this.segmentMinPlays; }
+
+  public int getSegmentTop() { return this.segmentTop; }
+
+  public Path getSegmentDeferrals() { return this.segmentDeferrals; }
 }
@@ -0,0 +1,232 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import org.opencastproject.matomoadapter.influxdbclient.ViewImpression;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The united view statistics of one day, stored column-wise. Instead of one ViewImpression with several
+ * Strings, an Instant and a list per episode, each episode is a row index into primitive arrays: plays,
+ * visitors and finishes as ints, organization and series as ids of interned tags, the eventId as bytes in a
+ * shared pool and the subtables as a linked list in a shared int pool. Duplicates are merged in place.
+ * <p>
+ * Rows are turned back into short-lived ViewImpressions only when they are read.
+ */
+public final class DayAggregate {
+  private static final int INITIAL_ROWS = 1024;
+  private static final int NO_SERIES = -1;
+  private static final int END = -1;
+
+  // Interned organization and series ids
+  private final List<String> tags = new ArrayList<>();
+  private final Map<String, Integer> tagIds = new HashMap<>();
+
+  // Columns, one entry per row
+  private int[] plays = new int[INITIAL_ROWS];
+  private int[] visitors = new int[INITIAL_ROWS];
+  private int[] finishes = new int[INITIAL_ROWS];
+  private int[] orgas = new int[INITIAL_ROWS];
+  private int[] series = new int[INITIAL_ROWS];
+  private int[] subtableHeads = new int[INITIAL_ROWS];
+  // Row i's eventId is eventPool[eventOffsets[i], eventOffsets[i + 1])
+  private int[] eventOffsets = new int[INITIAL_ROWS + 1];
+  private byte[] eventPool = new byte[INITIAL_ROWS * 36];
+
+  // Subtable ids of all rows, linked per row
+  private int[] subtables = new int[INITIAL_ROWS];
+  private int[] subtableNext = new int[INITIAL_ROWS];
+  private int subtableCount;
+
+  // Open-addressing index of rows, slot value is row + 1
+  private int[] index = new int[INITIAL_ROWS * 2];
+  private int rows;
+  private Instant date;
+
+  /**
+   * Add an impression, merging it into the row of the same episode if there is one.
+   *
+   * @param imp Impression to add
+   */
+  public void add(final ViewImpression imp) {
+    if (this.date == null)
+      this.date = imp.getDate();
+    final int orga = intern(imp.getOrgaId());
+    final byte[] eventId = imp.getEventId().getBytes(StandardCharsets.UTF_8);
+    final int mask = this.index.length - 1;
+    int slot = hash(orga, eventId, 0, eventId.length) & mask;
+    while (this.index[slot] != 0) {
+      final int row = this.index[slot] - 1;
+      if (this.orgas[row] == orga && isEvent(row, eventId)) {
+        this.plays[row] += imp.getPlays();
+        this.visitors[row] += imp.getVisitors();
+        this.finishes[row] += imp.getFinishes();
+        addSubtables(row, imp.getSubtables());
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    final int row = this.rows++;
+    ensureRows(this.rows);
+    this.plays[row] = imp.getPlays();
+    this.visitors[row] = imp.getVisitors();
+    this.finishes[row] = imp.getFinishes();
+    this.orgas[row] = orga;
+    this.series[row] = imp.getSeriesId() != null ? intern(imp.getSeriesId()) : NO_SERIES;
+    this.subtableHeads[row] = END;
+    final int offset = this.eventOffsets[row];
+    if (offset + eventId.length > this.eventPool.length)
+      this.eventPool = Arrays.copyOf(this.eventPool, Math.max(this.eventPool.length * 2, offset + eventId.length));
+    System.arraycopy(eventId, 0, this.eventPool, offset, eventId.length);
+    this.eventOffsets[row + 1] = offset + eventId.length;
+    addSubtables(row, imp.getSubtables());
+    this.index[slot] = row + 1;
+    if (this.rows * 2 > this.index.length)
+      rehash(this.index.length * 2);
+  }
+
+  /**
+   * @return Number of distinct episodes
+   */
+  public int size() {
+    return this.rows;
+  }
+
+  /**
+   * @param row Row index, in order of the episodes' first appearance
+   * @return The row as impression
+   */
+  public ViewImpression get(final int row) {
+    final ArrayList<String> ids = new ArrayList<>();
+    for (int s = this.subtableHeads[row]; s != END; s = this.subtableNext[s])
+      ids.add(Integer.toString(this.subtables[s]));
+    return new ViewImpression(eventId(row), this.tags.get(this.orgas[row]),
+            this.series[row] != NO_SERIES ? this.tags.get(this.series[row]) : null,
+            this.plays[row], this.visitors[row], this.finishes[row], this.date, ids);
+  }
+
+  /**
+   * @return Row indexes, sorted by organization and eventId
+   */
+  public Integer[] sortedRows() {
+    // Rank of each tag in String order, so rows compare by int first
+    final Integer[] byName = new Integer[this.tags.size()];
+    for (int i = 0; i < byName.length; i++)
+      byName[i] = i;
+    Arrays.sort(byName, (a, b) -> this.tags.get(a).compareTo(this.tags.get(b)));
+    final int[] rank = new int[byName.length];
+    for (int i = 0; i < byName.length; i++)
+      rank[byName[i]] = i;
+
+    final Integer[] order = new Integer[this.rows];
+    for (int i = 0; i < this.rows; i++)
+      order[i] = i;
+    // eventIds are ASCII UUIDs, so comparing the pooled bytes gives the same order as comparing the Strings
+    Arrays.sort(order, (a, b) -> {
+      final int c = Integer.compare(rank[this.orgas[a]], rank[this.orgas[b]]);
+      return c != 0 ? c : Arrays.compareUnsigned(this.eventPool, this.eventOffsets[a], this.eventOffsets[a + 1],
+              this.eventPool, this.eventOffsets[b], this.eventOffsets[b + 1]);
+    });
+    return order;
+  }
+
+  /**
+   * Remove all rows, keeping the allocated arrays.
+   */
+  public void clear() {
+    this.rows = 0;
+    this.subtableCount = 0;
+    Arrays.fill(this.index, 0);
+  }
+
+  private String eventId(final int row) {
+    return new String(this.eventPool, this.eventOffsets[row], this.eventOffsets[row + 1] - this.eventOffsets[row],
+            StandardCharsets.UTF_8);
+  }
+
+  private boolean isEvent(final int row, final byte[] eventId) {
+    final int from = this.eventOffsets[row];
+    return Arrays.equals(this.eventPool, from, this.eventOffsets[row + 1], eventId, 0, eventId.length);
+  }
+
+  private void addSubtables(final int row, final List<String> ids) {
+    for (final String id : ids) {
+      if (this.subtableCount == this.subtables.length) {
+        this.subtables = Arrays.copyOf(this.subtables, this.subtableCount * 2);
+        this.subtableNext = Arrays.copyOf(this.subtableNext, this.subtableCount * 2);
+      }
+      try {
+        // Matomo's subtable ids are integers, order doesn't matter for the segment sums
+        this.subtables[this.subtableCount] = Integer.parseInt(id);
+      } catch (final NumberFormatException e) {
+        throw new ParsingJsonSyntaxException("idsubdatatable: " + id);
+      }
+      this.subtableNext[this.subtableCount] = this.subtableHeads[row];
+      this.subtableHeads[row] = this.subtableCount++;
+    }
+  }
+
+  private int intern(final String tag) {
+    return this.tagIds.computeIfAbsent(tag, t -> {
+      this.tags.add(t);
+      return this.tags.size() - 1;
+    });
+  }
+
+  private void ensureRows(final int needed) {
+    if (needed <= this.plays.length)
+      return;
+    final int capacity = this.plays.length * 2;
+    this.plays = Arrays.copyOf(this.plays, capacity);
+    this.visitors = Arrays.copyOf(this.visitors, capacity);
+    this.finishes = Arrays.copyOf(this.finishes, capacity);
+    this.orgas = Arrays.copyOf(this.orgas, capacity);
+    this.series = Arrays.copyOf(this.series, capacity);
+    this.subtableHeads = Arrays.copyOf(this.subtableHeads, capacity);
+    this.eventOffsets = Arrays.copyOf(this.eventOffsets, capacity + 1);
+  }
+
+  private void rehash(final int capacity) {
+    this.index = new int[capacity];
+    final int mask = capacity - 1;
+    for (int row = 0; row < this.rows; row++) {
+      int slot = hash(this.orgas[row], this.eventPool, this.eventOffsets[row], this.eventOffsets[row + 1]) & mask;
+      while (this.index[slot] != 0)
+        slot = (slot + 1) & mask;
+      this.index[slot] = row + 1;
+    }
+  }
+
+  private static int hash(final int orga, final byte[] bytes, final int from, final int to) {
+    int h = orga;
+    for (int i = from; i < to; i++)
+      h = 31 * h + bytes[i];
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.opencastproject.matomoadapter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the day in progress: which episodes' views and segments are already in InfluxDB. Each checkpoint
+ * appends one frame with its episodes, guarded by length and checksum and forced to disk before the journal
+ * counts it as committed. A frame torn by a crash fails its checksum and is cut off on the next start.
+ * <p>
+ * Views are journaled with their series, so a resumed day needs no Opencast request for them. Rewriting a
+ * view point is harmless, so views are journaled after the write.
+ * <p>
+ * Segments are merged into cumulative totals, merging the day twice would count it twice. They are journaled
+ * ahead of the write instead: first the day's segment data and the merged totals are prepared, then InfluxDB
+ * and the segment store are written, then the episodes are committed. Episodes prepared but not committed by a
+ * crashed run are written again as journaled, instead of being fetched and merged again.
+ */
+public final class DayJournal {
+  // "OCDK", journals with segment data in the commit frames were "OCDJ"
+  private static final int MAGIC = 0x4F43444B;
+  private static final int HEADER_SIZE = 12;
+  private static final byte VIEWS = 'V';
+  private static final byte PREPARED = 'P';
+  private static final byte SEGMENTS = 'S';
+
+  private final Path path;
+  private final Map<String, String> views = new HashMap<>();
+  private final Map<String, Segments> prepared = new HashMap<>();
+  // Day's segment data of committed episodes, only kept for episodes loaded from the journal
+  private final Map<String, String> segments = new HashMap<>();
+  private FileChannel channel;
+
+  /**
+   * Segment statistics of an episode, as journaled ahead of their write (immutable)
+   */
+  public static final class Segments {
+    private final String orgaId;
+    private final String eventId;
+    private final String day;
+    private final String total;
+    private final Instant time;
+
+    /**
+     * @param orgaId Organization
+     * @param eventId Episode
+     * @param day The day's segment data as JSON array, null if neither snapshots nor bucket points are kept
+     * @param total Merged cumulative totals, as written to segments_daily. Null, if no totals are written
+     * @param time Timestamp of the totals point, null if there is none
+     */
+    public Segments(final String orgaId, final String eventId, final String day, final String total,
+                    final Instant time) {
+      this.orgaId = orgaId;
+      this.eventId = eventId;
+      this.day = day;
+      this.total = total;
+      this.time = time;
+    }
+
+    public String getOrgaId() { return this.orgaId; }
+
+    public String getEventId() { return this.eventId; }
+
+    public String getDay() { return this.day; }
+
+    public String getTotal() { return this.total; }
+
+    public Instant getTime() { return this.time; }
+  }
+
+  private DayJournal(final Path path) {
+    this.path = path;
+  }
+
+  /**
+   * @param path Journal file, created when the first day begins
+   * @return The journal
+   */
+  public static DayJournal open(final Path path) {
+    return new DayJournal(path);
+  }
+
+  /**
+   * Begin a day. If the journal holds the same day, its committed episodes are kept, otherwise it's reset.
+   *
+   * @param day Day about to be processed
+   * @return True, if the day is resumed
+   * @throws IOException If the journal can't be read or created
+   */
+  public synchronized boolean begin(final LocalDate day) throws IOException {
+    closeChannel();
+    this.views.clear();
+    this.prepared.clear();
+    this.segments.clear();
+    if (Files.exists(this.path) && load(day)) {
+      this.channel = FileChannel.open(this.path, StandardOpenOption.WRITE);
+      this.channel.position(this.channel.size());
+      return !this.views.isEmpty() || !this.prepared.isEmpty() || !this.segments.isEmpty();
+    }
+    // Replace the journal of another day atomically, a crash leaves either the old or the new one
+    final Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(day.toEpochDay());
+    header.flip();
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (header.hasRemaining())
+        out.write(header);
+      out.force(true);
+    }
+    Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    this.channel = FileChannel.open(this.path, StandardOpenOption.WRITE);
+    this.channel.position(HEADER_SIZE);
+    return false;
+  }
+
+  /**
+   * @param orgaId Organization
+   * @param eventId Episode
+   * @return True, if the episode's views are committed
+   */
+  public synchronized boolean isViewsCommitted(final String orgaId, final String eventId) {
+    return this.views.containsKey(key(orgaId, eventId));
+  }
+
+  /**
+   * @param orgaId Organization
+   * @param eventId Episode
+   * @return Series of an episode with committed views, or null
+   */
+  public synchronized String getSeries(final String orgaId, final String eventId) {
+    return this.views.get(key(orgaId, eventId));
+  }
+
+  /**
+   * @param orgaId Organization
+   * @param eventId Episode
+   * @return True, if the episode's segments are committed
+   */
+  public synchronized boolean isSegmentsCommitted(final String orgaId, final String eventId) {
+    return this.segments.containsKey(key(orgaId, eventId));
+  }
+
+  /**
+   * @return Episodes prepared by a crashed run, but not committed. Their writes may or may not have happened
+   */
+  public synchronized List<Segments> getPreparedSegments() {
+    return new ArrayList<>(this.prepared.values());
+  }
+
+  /**
+   * Put the journaled segment data of committed episodes into the day's snapshot, their views must be
+   * recorded first.
+   *
+   * @param snapshot Snapshot of the resumed day
+   */
+  public synchronized void restoreSegments(final DaySnapshots.Snapshot snapshot) {
+    for (final Map.Entry<String, String> e : this.segments.entrySet()) {
+      if (e.getValue() == null)
+        continue;
+      final int separator = e.getKey().indexOf('\u0000');
+      snapshot.putSegments(e.getKey().substring(0, separator), e.getKey().substring(separator + 1), e.getValue());
+    }
+  }
+
+  /**
+   * Record episodes whose views InfluxDB accepted.
+   *
+   * @param committed Series by organization and eventId, separated by <code>\u0000</code>
+   * @throws IOException If the frame can't be written
+   */
+  public synchronized void commitViews(final Map<String, String> committed) throws IOException {
+    if (committed.isEmpty())
+      return;
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(VIEWS);
+      out.writeInt(committed.size());
+      for (final Map.Entry<String, String> e : committed.entrySet()) {
+        writeString(out, e.getKey());
+        writeString(out, e.getValue());
+      }
+    }
+    append(bytes.toByteArray());
+    this.views.putAll(committed);
+  }
+
+  /**
+   * Record the segment statistics of episodes, before they're written to InfluxDB and the segment store.
+   *
+   * @param episodes Segment statistics about to be written
+   * @throws IOException If the frame can't be written
+   */
+  public synchronized void prepareSegments(final Collection<Segments> episodes) throws IOException {
+    if (episodes.isEmpty())
+      return;
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(PREPARED);
+      out.writeInt(episodes.size());
+      for (final Segments e : episodes) {
+        writeString(out, e.orgaId);
+        writeString(out, e.eventId);
+        writeString(out, e.day);
+        writeString(out, e.total);
+        out.writeLong(e.time != null ? e.time.getEpochSecond() : 0L);
+      }
+    }
+    append(bytes.toByteArray());
+    for (final Segments e : episodes)
+      this.prepared.put(key(e.orgaId, e.eventId), e);
+  }
+
+  /**
+   * Record prepared episodes, whose segments InfluxDB and the segment store accepted.
+   *
+   * @param episodes Committed episodes
+   * @throws IOException If the frame can't be written
+   */
+  public synchronized void commitSegments(final Collection<Segments> episodes) throws IOException {
+    if (episodes.isEmpty())
+      return;
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(SEGMENTS);
+      out.writeInt(episodes.size());
+      for (final Segments e : episodes)
+        writeString(out, key(e.orgaId, e.eventId));
+    }
+    append(bytes.toByteArray());
+    for (final Segments e : episodes) {
+      final String key = key(e.orgaId, e.eventId);
+      this.prepared.remove(key);
+      // The data is only needed to restore the snapshot of a resumed day
+      this.segments.put(key, null);
+    }
+  }
+
+  /**
+   * Forget the day, after it's finished and the date file is advanced.
+   *
+   * @throws IOException If the journal can't be deleted
+   */
+  public synchronized void clear() throws IOException {
+    closeChannel();
+    this.views.clear();
+    this.prepared.clear();
+    this.segments.clear();
+    Files.deleteIfExists(this.path);
+  }
+
+  /**
+   * @param orgaId Organization
+   * @param eventId Episode
+   * @return Key of an episode in the journal
+   */
+  public static String key(final String orgaId, final String eventId) {
+    return orgaId + '\u0000' + eventId;
+  }
+
+  private void append(final byte[] payload) throws IOException {
+    if (this.channel == null)
+      throw new IOException("No day begun in journal " + this.path);
+    final CRC32 crc = new CRC32();
+    crc.update(payload);
+    final ByteBuffer frame = ByteBuffer.allocate(8 + payload.length)
+            .putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    frame.flip();
+    while (frame.hasRemaining())
+      this.channel.write(frame);
+    this.channel.force(false);
+  }
+
+  /**
+   * Read the journal's frames, if it belongs to the given day. A torn last frame is cut off.
+   *
+   * @return False, if the journal belongs to another day or isn't a journal
+   */
+  private boolean load(final LocalDate expected) throws IOException {
+    long valid = HEADER_SIZE;
+    try (FileChannel in = FileChannel.open(this.path, StandardOpenOption.READ);
+         DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)))) {
+      if (in.size() < HEADER_SIZE || data.readInt() != MAGIC || data.readLong() != expected.toEpochDay())
+        return false;
+      while (true) {
+        final byte[] payload;
+        final int checksum;
+        try {
+          final int length = data.readInt();
+          checksum = data.readInt();
+          if (length < 0 || length > in.size() - valid - 8)
+            break;
+          payload = new byte[length];
+          data.readFully(payload);
+        } catch (final EOFException e) {
+          break;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum)
+          break;
+        readFrame(payload);
+        valid += 8 + payload.length;
+      }
+    }
+    try (FileChannel out = FileChannel.open(this.path, StandardOpenOption.WRITE)) {
+      if (out.size() > valid) {
+        out.truncate(valid);
+        out.force(true);
+      }
+    }
+    return true;
+  }
+
+  private void readFrame(final byte[] payload) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+      final byte kind = in.readByte();
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        if (kind == VIEWS) {
+          this.views.put(readString(in), readString(in));
+        } else if (kind == PREPARED) {
+          final String orgaId = readString(in);
+          final String eventId = readString(in);
+          final String day = readString(in);
+          final String total = readString(in);
+          final long seconds = in.readLong();
+          this.prepared.put(key(orgaId, eventId), new Segments(orgaId, eventId, day, total,
+                  total != null ? Instant.ofEpochSecond(seconds) : null));
+        } else {
+          final String key = readString(in);
+          final Segments committed = this.prepared.remove(key);
+          this.segments.put(key, committed != null ? committed.day : null);
+        }
+      }
+    }
+  }
+
+  private void closeChannel() throws IOException {
+    if (this.channel != null) {
+      this.channel.close();
+      this.channel = null;
+    }
+  }
+
+  private static void writeString(final DataOutputStream out, final String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(final DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length < 0)
+      return null;
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
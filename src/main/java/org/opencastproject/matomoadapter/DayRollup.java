@@ -0,0 +1,103 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import org.opencastproject.matomoadapter.influxdbclient.InfluxDBProcessor;
+import org.opencastproject.matomoadapter.influxdbclient.RollupImpression;
+import org.opencastproject.matomoadapter.influxdbclient.ViewImpression;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sums up the view statistics of one day per series and per organization, while the day's impressions pass
+ * by. Episodes without a series only count towards their organization.
+ */
+public final class DayRollup {
+  private static final int PLAYS = 0;
+  private static final int VISITORS = 1;
+  private static final int FINISHES = 2;
+  private static final String FIELDS = "sum(plays) AS plays, sum(visitors) AS visitors, sum(finishes) AS finishes";
+
+  // organizationId \0 seriesId, or organizationId, to plays, visitors and finishes
+  private final Map<String, int[]> series = new LinkedHashMap<>();
+  private final Map<String, int[]> organizations = new LinkedHashMap<>();
+
+  /**
+   * @param imp United impression of one episode
+   */
+  public void add(final ViewImpression imp) {
+    if (imp.getSeriesId() != null && !imp.getSeriesId().isEmpty())
+      sum(this.series.computeIfAbsent(imp.getOrgaId() + '\u0000' + imp.getSeriesId(), k -> new int[3]), imp);
+    sum(this.organizations.computeIfAbsent(imp.getOrgaId(), k -> new int[3]), imp);
+  }
+
+  /**
+   * @param date Timestamp of the day
+   * @return One point per series and one per organization
+   */
+  public List<RollupImpression> points(final Instant date) {
+    final List<RollupImpression> points = new ArrayList<>(this.series.size() + this.organizations.size());
+    for (final Map.Entry<String, int[]> e : this.series.entrySet()) {
+      final int split = e.getKey().indexOf('\u0000');
+      final int[] v = e.getValue();
+      points.add(new RollupImpression(RollupImpression.Level.SERIES, e.getKey().substring(0, split),
+              e.getKey().substring(split + 1), v[PLAYS], v[VISITORS], v[FINISHES], date));
+    }
+    for (final Map.Entry<String, int[]> e : this.organizations.entrySet()) {
+      final int[] v = e.getValue();
+      points.add(new RollupImpression(RollupImpression.Level.ORGANIZATION, e.getKey(), null, v[PLAYS],
+              v[VISITORS], v[FINISHES], date));
+    }
+    return points;
+  }
+
+  /**
+   * Recompute a day's rollups inside InfluxDB from its daily impressions, when no single adapter instance sees
+   * all of them.
+   *
+   * @param influxPro InfluxDB processor
+   * @param day Day to recompute
+   * @return Number of points written
+   */
+  public static long recompute(final InfluxDBProcessor influxPro, final LocalDate day) {
+    final String where = " FROM %1$s.%2$s.impressions_daily WHERE time >= "
+            + day.atStartOfDay(ZoneId.systemDefault()).toEpochSecond() + "s AND time < "
+            + day.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toEpochSecond() + "s";
+    // Episodes without a series only count towards their organization
+    return influxPro.selectInto("SELECT " + FIELDS + " INTO %1$s.%2$s.impressions_series_daily" + where
+            + " AND \"seriesId\" != '' GROUP BY \"organizationId\", \"seriesId\"")
+            + influxPro.selectInto("SELECT " + FIELDS + " INTO %1$s.%2$s.impressions_organization_daily" + where
+            + " GROUP BY \"organizationId\"");
+  }
+
+  private static void sum(final int[] totals, final ViewImpression imp) {
+    totals[PLAYS] += imp.getPlays();
+    totals[VISITORS] += imp.getVisitors();
+    totals[FINISHES] += imp.getFinishes();
+  }
+}
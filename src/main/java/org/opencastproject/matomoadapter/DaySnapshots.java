@@ -0,0 +1,265 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import org.opencastproject.matomoadapter.influxdbclient.ViewImpression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Per-day snapshots of what the adapter wrote for a day: the view statistics of each episode and the segment
+ * statistics Matomo reported for it on that day. When a day is fetched again, the snapshot tells which
+ * impressions changed and by how much each episode's segment totals have to be corrected.
+ * <p>
+ * Each day is one gzip compressed file <code>YYYY-MM-DD.snapshot</code> in the snapshot directory, replaced
+ * atomically.
+ */
+public final class DaySnapshots {
+  private static final int MAGIC = 0x4F435344;
+  private static final String SUFFIX = ".snapshot";
+
+  private final Path dir;
+
+  /**
+   * Statistics of one episode on one day
+   */
+  public static final class Record {
+    private final String seriesId;
+    private final int plays;
+    private final int visitors;
+    private final int finishes;
+    private final String segments;
+
+    Record(final String seriesId, final int plays, final int visitors, final int finishes, final String segments) {
+      this.seriesId = seriesId;
+      this.plays = plays;
+      this.visitors = visitors;
+      this.finishes = finishes;
+      this.segments = segments;
+    }
+
+    /**
+     * @return Segment statistics Matomo reported for this day, or null if none were fetched
+     */
+    public String getSegments() { return this.segments; }
+  }
+
+  /**
+   * All episodes of one day. Safe to fill from several threads.
+   */
+  public static final class Snapshot {
+    private final Map<String, Record> records;
+
+    public Snapshot() {
+      this.records = new HashMap<>();
+    }
+
+    private Snapshot(final Map<String, Record> records) {
+      this.records = records;
+    }
+
+    /**
+     * @return A copy, to be updated by a resync while this one is compared against
+     */
+    public synchronized Snapshot copy() {
+      return new Snapshot(new HashMap<>(this.records));
+    }
+
+    /**
+     * Record the view statistics of an episode, keeping its segment statistics.
+     *
+     * @param imp Impression as written
+     */
+    public synchronized void putViews(final ViewImpression imp) {
+      final Record old = this.records.get(key(imp.getOrgaId(), imp.getEventId()));
+      this.records.put(key(imp.getOrgaId(), imp.getEventId()), new Record(seriesOf(imp), imp.getPlays(),
+              imp.getVisitors(), imp.getFinishes(), old != null ? old.segments : null));
+    }
+
+    /**
+     * Record the segment statistics Matomo reported for an episode on this day. The views must be recorded first.
+     *
+     * @param orgaId Organization
+     * @param eventId Episode
+     * @param segments JSON array of the day's segment statistics
+     */
+    public synchronized void putSegments(final String orgaId, final String eventId, final String segments) {
+      final Record old = this.records.get(key(orgaId, eventId));
+      if (old != null)
+        this.records.put(key(orgaId, eventId),
+                new Record(old.seriesId, old.plays, old.visitors, old.finishes, segments));
+    }
+
+    /**
+     * @param orgaId Organization
+     * @param eventId Episode
+     * @return The episode's record, or null if it had no views on this day
+     */
+    public synchronized Record get(final String orgaId, final String eventId) {
+      return this.records.get(key(orgaId, eventId));
+    }
+
+    /**
+     * @param imp Freshly fetched impression
+     * @return True, if its view statistics differ from the recorded ones
+     */
+    public synchronized boolean isChanged(final ViewImpression imp) {
+      final Record r = this.records.get(key(imp.getOrgaId(), imp.getEventId()));
+      return r == null || r.plays != imp.getPlays() || r.visitors != imp.getVisitors()
+              || r.finishes != imp.getFinishes() || !r.seriesId.equals(seriesOf(imp));
+    }
+
+    private static String seriesOf(final ViewImpression imp) {
+      return imp.getSeriesId() != null ? imp.getSeriesId() : "";
+    }
+
+    public synchronized int size() {
+      return this.records.size();
+    }
+  }
+
+  private DaySnapshots(final Path dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * @param dir Snapshot directory, created if missing
+   * @return The snapshots
+   * @throws IOException If the directory can't be created
+   */
+  public static DaySnapshots open(final Path dir) throws IOException {
+    Files.createDirectories(dir);
+    return new DaySnapshots(dir);
+  }
+
+  /**
+   * @param day Day to load
+   * @return The day's snapshot, or null if the day was not recorded
+   * @throws IOException If the snapshot can't be read
+   */
+  public Snapshot load(final LocalDate day) throws IOException {
+    final Path file = file(day);
+    if (!Files.exists(file))
+      return null;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(file))))) {
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not a day snapshot: " + file);
+      final int count = in.readInt();
+      final Map<String, Record> records = new HashMap<>(count * 4 / 3 + 1);
+      for (int i = 0; i < count; i++) {
+        final String key = in.readUTF();
+        final String seriesId = in.readUTF();
+        final int plays = in.readInt();
+        final int visitors = in.readInt();
+        final int finishes = in.readInt();
+        final int length = in.readInt();
+        String segments = null;
+        if (length >= 0) {
+          final byte[] bytes = new byte[length];
+          in.readFully(bytes);
+          segments = new String(bytes, StandardCharsets.UTF_8);
+        }
+        records.put(key, new Record(seriesId, plays, visitors, finishes, segments));
+      }
+      return new Snapshot(records);
+    }
+  }
+
+  /**
+   * Atomically replace the snapshot of a day.
+   *
+   * @param day Day of the snapshot
+   * @param snapshot Snapshot to write
+   * @throws IOException If writing fails
+   */
+  public void save(final LocalDate day, final Snapshot snapshot) throws IOException {
+    final Path file = file(day);
+    final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    synchronized (snapshot) {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+              new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+        out.writeInt(MAGIC);
+        out.writeInt(snapshot.records.size());
+        for (final Map.Entry<String, Record> e : snapshot.records.entrySet()) {
+          final Record r = e.getValue();
+          out.writeUTF(e.getKey());
+          out.writeUTF(r.seriesId);
+          out.writeInt(r.plays);
+          out.writeInt(r.visitors);
+          out.writeInt(r.finishes);
+          if (r.segments == null) {
+            out.writeInt(-1);
+          } else {
+            final byte[] bytes = r.segments.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+          }
+        }
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Delete snapshots of days before the given one, they are outside of the resync window.
+   *
+   * @param oldest Oldest day to keep
+   * @throws IOException If listing or deleting fails
+   */
+  public void prune(final LocalDate oldest) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir, "*" + SUFFIX)) {
+      for (final Path f : files) {
+        final String name = f.getFileName().toString();
+        try {
+          if (LocalDate.parse(name.substring(0, name.length() - SUFFIX.length())).isBefore(oldest))
+            Files.delete(f);
+        } catch (final DateTimeParseException e) {
+          // Not one of ours
+        }
+      }
+    }
+  }
+
+  private Path file(final LocalDate day) {
+    return this.dir.resolve(day + SUFFIX);
+  }
+
+  private static String key(final String orgaId, final String eventId) {
+    return orgaId + '\u0000' + eventId;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import java.util.List;
+
+/**
+ * Finds the eventId within the video URL (label) Matomo reports for a played resource. The label is
+ * scanned for a well-formed UUID that directly follows one of the configured markers, e.g.
+ * <code>id=</code> for Theodul/Paella <code>watch.html?id=</code> URLs or <code>player/</code> for
+ * Paella's static <code>engage-player/{eventId}/</code> URLs. Apart from the returned String, the scan
+ * does not allocate. Recently seen labels are remembered in a small direct-mapped memo. The memo only helps
+ * with labels that repeat within a run, a label seen the first time costs a full scan.
+ */
+public final class EventIdExtractor {
+  private static final int UUID_LENGTH = 36;
+  private static final boolean[] HEX = new boolean['f' + 1];
+
+  static {
+    for (char c = '0'; c <= '9'; c++)
+      HEX[c] = true;
+    for (char c = 'a'; c <= 'f'; c++) {
+      HEX[c] = true;
+      HEX[Character.toUpperCase(c)] = true;
+    }
+  }
+
+  private final String[] markers;
+  private final Memo[] memo;
+  private final int memoMask;
+
+  /**
+   * Immutable memo entry, so that entries can be shared between threads without locking.
+   */
+  private static final class Memo {
+    private final String label;
+    private final String eventId;
+
+    Memo(final String label, final String eventId) {
+      this.label = label;
+      this.eventId = eventId;
+    }
+  }
+
+  /**
+   * Create the extractor.
+   *
+   * @param markers URL fragments directly preceding the eventId
+   * @param memoSize Number of memo slots, rounded up to a power of two. 0 disables the memo
+   */
+  public EventIdExtractor(final List<String> markers, final int memoSize) {
+    this.markers = markers.toArray(new String[0]);
+    final int slots = memoSize > 0 ? Integer.highestOneBit(Math.max(1, memoSize - 1)) << 1 : 0;
+    this.memo = slots > 0 ? new Memo[slots] : null;
+    this.memoMask = slots - 1;
+  }
+
+  /**
+   * Extract the eventId from a Matomo label.
+   *
+   * @param label Sub-URL of the video
+   * @return The eventId, or an empty String if the label doesn't contain one (e.g. live streams)
+   */
+  public String extract(final String label) {
+    if (this.memo == null)
+      return scan(label);
+
+    final int slot = label.hashCode() & this.memoMask;
+    final Memo cached = this.memo[slot];
+    if (cached != null && cached.label.equals(label))
+      return cached.eventId;
+
+    final String eventId = scan(label);
+    this.memo[slot] = new Memo(label, eventId);
+    return eventId;
+  }
+
+  /**
+   * Looks for each marker with <code>indexOf</code>, which the JVM vectorizes, and validates the
+   * characters following it in place.
+   */
+  private String scan(final String label) {
+    final int last = label.length() - UUID_LENGTH;
+    for (final String marker : this.markers) {
+      int from = label.indexOf(marker);
+      while (from >= 0) {
+        final int start = from + marker.length();
+        if (start > last)
+          break;
+        if (isUuidAt(label, start) && isDelimited(label, start + UUID_LENGTH))
+          return label.substring(start, start + UUID_LENGTH);
+        from = label.indexOf(marker, from + 1);
+      }
+    }
+    return "";
+  }
+
+  private static boolean isUuidAt(final String s, final int start) {
+    return s.charAt(start + 8) == '-' && s.charAt(start + 13) == '-' && s.charAt(start + 18) == '-'
+            && s.charAt(start + 23) == '-'
+            && isHexRange(s, start, start + 8) && isHexRange(s, start + 9, start + 13)
+            && isHexRange(s, start + 14, start + 18) && isHexRange(s, start + 19, start + 23)
+            && isHexRange(s, start + 24, start + UUID_LENGTH);
+  }
+
+  private static boolean isHexRange(final String s, final int from, final int to) {
+    for (int i = from; i < to; i++) {
+      if (!isHex(s.charAt(i)))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * The UUID must not be followed by further id characters, otherwise it's only the prefix of
+   * something else.
+   */
+  private static boolean isDelimited(final String s, final int end) {
+    if (end == s.length())
+      return true;
+    final char c = s.charAt(end);
+    return c != '-' && !isHex(c);
+  }
+
+  private static boolean isHex(final char c) {
+    return c < HEX.length && HEX[c];
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import org.slf4j.Logger;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Collects per-host latency histograms for the phases of HTTP calls (DNS, connect, TLS, time to first
+ * byte and body read). Timings are taken from OkHttp's event callbacks, so no response body is ever
+ * buffered or copied for measuring.
+ */
+public final class HttpTimings {
+
+  /**
+   * Phases of a HTTP call that get measured
+   */
+  public enum Phase { DNS, CONNECT, TLS, TTFB, BODY }
+
+  private final Map<String, Map<Phase, Histogram>> hosts = new ConcurrentHashMap<>();
+
+  /**
+   * Create a listener factory to be registered with an <code>OkHttpClient.Builder</code>.
+   *
+   * @return Factory creating one listener per call
+   */
+  public EventListener.Factory listenerFactory() {
+    return call -> new TimingListener(call.request().url().host());
+  }
+
+  /**
+   * Log a summary of all histograms and reset them afterwards.
+   *
+   * @param logger Logger for the report
+   */
+  public void report(final Logger logger) {
+    for (final Map.Entry<String, Map<Phase, Histogram>> host : this.hosts.entrySet()) {
+      for (final Map.Entry<Phase, Histogram> phase : host.getValue().entrySet()) {
+        final Histogram h = phase.getValue();
+        if (h.count() == 0)
+          continue;
+        logger.info("HTTPTIMING, host: {}, phase: {}, count: {}, mean: {}ms, p50: {}ms, p90: {}ms, p99: {}ms, "
+                        + "max: {}ms", host.getKey(), phase.getKey(), h.count(), h.mean(), h.percentile(50),
+                h.percentile(90), h.percentile(99), h.max());
+      }
+    }
+    this.hosts.clear();
+  }
+
+  private void record(final String host, final Phase phase, final long startNanos) {
+    if (startNanos == 0L)
+      return;
+    final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    this.hosts.computeIfAbsent(host, ignored -> {
+      final Map<Phase, Histogram> phases = new EnumMap<>(Phase.class);
+      for (final Phase ph : Phase.values())
+        phases.put(ph, new Histogram());
+      return phases;
+    }).get(phase).add(millis);
+  }
+
+  /**
+   * Lock-free histogram with power-of-two millisecond buckets. Percentiles are reported as the upper
+   * bound of the bucket they fall into.
+   */
+  public static final class Histogram {
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private volatile long max;
+
+    public void add(final long millis) {
+      final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0L, millis)));
+      this.counts.incrementAndGet(bucket);
+      this.total.increment();
+      this.sum.add(millis);
+      if (millis > this.max)
+        this.max = millis;
+    }
+
+    public long count() { return this.total.sum(); }
+
+    public long mean() {
+      final long c = count();
+      return c == 0 ? 0 : this.sum.sum() / c;
+    }
+
+    public long max() { return this.max; }
+
+    /**
+     * Approximate percentile.
+     *
+     * @param p Percentile between 0 and 100
+     * @return Upper bound of the bucket containing the percentile, in milliseconds
+     */
+    public long percentile(final double p) {
+      final long c = count();
+      if (c == 0)
+        return 0;
+      final long rank = (long) Math.ceil(c * p / 100.0);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += this.counts.get(i);
+        if (seen >= rank)
+          return Math.min(this.max, (1L << i) - 1);
+      }
+      return this.max;
+    }
+  }
+
+  /**
+   * Listener for a single call. OkHttp invokes the callbacks of one call sequentially, so plain
+   * fields suffice.
+   */
+  private final class TimingListener extends EventListener {
+    private final String host;
+    private long dnsStart;
+    private long connectStart;
+    private long tlsStart;
+    private long requestStart;
+    private long bodyStart;
+
+    TimingListener(final String host) {
+      this.host = host;
+    }
+
+    @Override
+    public void dnsStart(final Call call, final String domainName) {
+      this.dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(final Call call, final String domainName, final List<InetAddress> addresses) {
+      record(this.host, Phase.DNS, this.dnsStart);
+    }
+
+    @Override
+    public void connectStart(final Call call, final InetSocketAddress address, final Proxy proxy) {
+      this.connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(final Call call) {
+      this.tlsStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(final Call call, final Handshake handshake) {
+      record(this.host, Phase.TLS, this.tlsStart);
+    }
+
+    @Override
+    public void connectEnd(final Call call, final InetSocketAddress address, final Proxy proxy,
+                           final Protocol protocol) {
+      record(this.host, Phase.CONNECT, this.connectStart);
+    }
+
+    @Override
+    public void requestHeadersStart(final Call call) {
+      this.requestStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseHeadersEnd(final Call call, final Response response) {
+      record(this.host, Phase.TTFB, this.requestStart);
+    }
+
+    @Override
+    public void responseBodyStart(final Call call) {
+      this.bodyStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseBodyEnd(final Call call, final long byteCount) {
+      record(this.host, Phase.BODY, this.bodyStart);
+    }
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import org.opencastproject.matomoadapter.influxdbclient.ViewImpression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Unites the ViewImpressions of one day, so that each episode is written once. Impressions are merged in a
+ * columnar DayAggregate. If a spill threshold is set and the aggregate grows beyond it, it is written to a
+ * temporary file sorted by episode and cleared. Before the impressions are read, all sorted runs are merged into
+ * one file, so the heap only ever holds up to threshold impressions, however many episodes were viewed on the day.
+ * <p>
+ * The united impressions can be iterated any number of times, e.g. once for the views and once for the
+ * segments. Temporary files are deleted on <code>close</code>.
+ */
+public final class ImpressionAggregator implements Iterable<ViewImpression>, Closeable {
+  private static final String PREFIX = "impressions-";
+
+  private final int spillThreshold;
+  private final Path spillDir;
+  private final List<Path> runs = new ArrayList<>();
+  private final List<Closeable> readers = new ArrayList<>();
+  private DayAggregate impressions = new DayAggregate();
+  private Path merged;
+  private int size;
+
+  /**
+   * @param spillThreshold Number of impressions kept in memory before spilling to disk, 0 to never spill
+   * @param spillDir Directory for the temporary files
+   */
+  public ImpressionAggregator(final int spillThreshold, final Path spillDir) {
+    this.spillThreshold = spillThreshold;
+    this.spillDir = spillDir;
+  }
+
+  /**
+   * Add an impression, merging it with an earlier one of the same episode.
+   *
+   * @param imp Impression to add
+   * @throws UncheckedIOException If spilling to disk fails
+   */
+  public void add(final ViewImpression imp) {
+    this.impressions.add(imp);
+    if (this.spillThreshold > 0 && this.impressions.size() >= this.spillThreshold) {
+      try {
+        spill();
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Merge all spilled runs. Must be called once, after the last impression is added.
+   *
+   * @throws IOException If reading or writing the temporary files fails
+   */
+  public void finish() throws IOException {
+    if (this.runs.isEmpty()) {
+      this.size = this.impressions.size();
+      return;
+    }
+    spill();
+    this.impressions = null;
+    this.merged = Files.createTempFile(this.spillDir, PREFIX, ".merged");
+    final PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> a.key.compareTo(b.key));
+    try (DataOutputStream out = output(this.merged)) {
+      for (final Path run : this.runs) {
+        final RunReader reader = new RunReader(run);
+        this.readers.add(reader);
+        if (reader.advance())
+          queue.add(reader);
+      }
+      while (!queue.isEmpty()) {
+        // Unite the episode's impressions from all runs, each run holds it at most once
+        final RunReader first = queue.poll();
+        final String key = first.key;
+        ViewImpression imp = first.current;
+        if (first.advance())
+          queue.add(first);
+        while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+          final RunReader next = queue.poll();
+          imp = ImpressionUtils.mergeViewImpressions(imp, next.current);
+          if (next.advance())
+            queue.add(next);
+        }
+        write(out, imp);
+        this.size++;
+      }
+      out.writeBoolean(false);
+    } finally {
+      closeReaders();
+    }
+    for (final Path run : this.runs)
+      Files.deleteIfExists(run);
+    this.runs.clear();
+  }
+
+  /**
+   * @return Number of distinct episodes, after <code>finish</code>
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * @return True, if impressions were spilled to disk
+   */
+  public boolean isSpilled() {
+    return this.merged != null;
+  }
+
+  @Override
+  public Iterator<ViewImpression> iterator() {
+    if (this.merged == null) {
+      final DayAggregate aggregate = this.impressions;
+      return new Iterator<>() {
+        private int row;
+
+        @Override
+        public boolean hasNext() {
+          return this.row < aggregate.size();
+        }
+
+        @Override
+        public ViewImpression next() {
+          if (this.row == aggregate.size())
+            throw new NoSuchElementException();
+          return aggregate.get(this.row++);
+        }
+      };
+    }
+    try {
+      final RunReader reader = new RunReader(this.merged);
+      this.readers.add(reader);
+      return new Iterator<>() {
+        private int remaining = ImpressionAggregator.this.size;
+
+        @Override
+        public boolean hasNext() {
+          return this.remaining > 0;
+        }
+
+        @Override
+        public ViewImpression next() {
+          if (this.remaining == 0)
+            throw new NoSuchElementException();
+          try {
+            reader.advance();
+            if (--this.remaining == 0)
+              reader.close();
+          } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          return reader.current;
+        }
+      };
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Delete all temporary files.
+   *
+   * @throws IOException If deleting fails
+   */
+  @Override
+  public void close() throws IOException {
+    closeReaders();
+    for (final Path run : this.runs)
+      Files.deleteIfExists(run);
+    this.runs.clear();
+    if (this.merged != null)
+      Files.deleteIfExists(this.merged);
+  }
+
+  private void spill() throws IOException {
+    final Path run = Files.createTempFile(this.spillDir, PREFIX, ".run");
+    this.runs.add(run);
+    try (DataOutputStream out = output(run)) {
+      for (final int row : this.impressions.sortedRows())
+        write(out, this.impressions.get(row));
+      out.writeBoolean(false);
+    }
+    this.impressions.clear();
+  }
+
+  private void closeReaders() throws IOException {
+    for (final Closeable reader : this.readers)
+      reader.close();
+    this.readers.clear();
+  }
+
+  private static DataOutputStream output(final Path file) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+  }
+
+  private static void write(final DataOutputStream out, final ViewImpression imp) throws IOException {
+    // Every record is preceded by true, the end of a file is marked by false
+    out.writeBoolean(true);
+    out.writeUTF(imp.getEventId());
+    out.writeUTF(imp.getOrgaId());
+    out.writeBoolean(imp.getSeriesId() != null);
+    if (imp.getSeriesId() != null)
+      out.writeUTF(imp.getSeriesId());
+    out.writeInt(imp.getPlays());
+    out.writeInt(imp.getVisitors());
+    out.writeInt(imp.getFinishes());
+    out.writeLong(imp.getDate().getEpochSecond());
+    out.writeInt(imp.getDate().getNano());
+    out.writeInt(imp.getSubtables().size());
+    for (final String subtable : imp.getSubtables())
+      out.writeUTF(subtable);
+  }
+
+  private static String key(final ViewImpression imp) {
+    return imp.getOrgaId() + '\u0000' + imp.getEventId();
+  }
+
+  /**
+   * Sequential reader of a sorted run
+   */
+  private static final class RunReader implements Closeable {
+    private final DataInputStream in;
+    private ViewImpression current;
+    private String key;
+
+    RunReader(final Path file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+    }
+
+    /**
+     * @return False at the end of the run
+     */
+    boolean advance() throws IOException {
+      if (!this.in.readBoolean())
+        return false;
+      final String eventId = this.in.readUTF();
+      final String orgaId = this.in.readUTF();
+      final String seriesId = this.in.readBoolean() ? this.in.readUTF() : null;
+      final int plays = this.in.readInt();
+      final int visitors = this.in.readInt();
+      final int finishes = this.in.readInt();
+      final Instant date = Instant.ofEpochSecond(this.in.readLong(), this.in.readInt());
+      final int count = this.in.readInt();
+      final ArrayList<String> idSubtables = new ArrayList<>(count);
+      for (int i = 0; i < count; i++)
+        idSubtables.add(this.in.readUTF());
+      this.current = new ViewImpression(eventId, orgaId, seriesId, plays, visitors, finishes, date, idSubtables);
+      this.key = key(this.current);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.in.close();
+    }
+  }
+}
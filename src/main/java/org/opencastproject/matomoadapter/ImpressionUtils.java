@@ -52,21 +52,34 @@ public final class ImpressionUtils {
    * Subsequently, the Opencast Event API is called for relevant series information (seriesID).
    * Finally, all required data is stored and returned within a ViewImpression Object.
    *
-   * @param date Date for which the data is requested
+   * The series of episodes with views committed in the journal is taken from the journal instead of Opencast,
+   * and episodes of other shards are evicted.
+   *
    * @param ocClient Opencast client used for the event API request
+   * @param extractor Finds the eventId within the video URL
    * @param json JSON object representing one video and its statistics
+   * @param date Date for which the data is requested
+   * @param journal Journal of the day in progress, may be null
+   * @param shards Shard of this instance, may be null
    * @return Completed Impression, ready to be converted to a InfluxDB point
    */
-  public static Flowable<ViewImpression> createViewImpression(final OpencastClient ocClient, final JsonObject json,
-                                                              final OffsetDateTime date) {
+  public static Flowable<ViewImpression> createViewImpression(final OpencastClient ocClient,
+                                                              final EventIdExtractor extractor,
+                                                              final JsonObject json,
+                                                              final OffsetDateTime date,
+                                                              final DayJournal journal,
+                                                              final ShardCoordinator shards) {
     try {
       // Extract eventId from JSON
       final String label = json.get("label").getAsString();
-      final String eventId = getEventJson(label);
+      final String eventId = extractor.extract(label);
 
       // If the JSON label doesnt fit the pattern (e.g. Live Streams), the entry is evicted
       if (eventId.isEmpty())
         return Flowable.empty();
+      // Another instance handles the episodes of other shards
+      if (shards != null && !shards.owns(eventId))
+        return Flowable.empty();
 
       final String orgaId = ocClient.getOrgaId();
       // Parse the remaining important data from JSON
@@ -76,6 +89,12 @@ public final class ImpressionUtils {
       final ArrayList<String> idSubtables = new ArrayList<>();
       idSubtables.add(json.get("idsubdatatable").getAsString());
 
+      // A resumed day already knows the series of committed episodes
+      final String journaled = journal != null ? journal.getSeries(orgaId, eventId) : null;
+      if (journaled != null)
+        return Flowable.just(new ViewImpression(eventId, orgaId, journaled, plays, visits, finishes,
+                date.toInstant(), idSubtables));
+
       // Create new ViewImpression with series data from Opencast
       return OpencastUtils.seriesForEvent(LOGGER, ocClient, orgaId, eventId)
               .flatMap(series -> Flowable.just(new ViewImpression(eventId, orgaId,
@@ -112,56 +131,23 @@ public final class ImpressionUtils {
   }
 
   /**
-   * Parses the video URL to find the eventId. Currently the most common URL-types, coming from the
-   * Theodul and Paella player are supported. Live Streams do not contain an eventId.
-   *
-   * @param label Sub-URL of the video
-   * @return The eventID parsed from the URL
-   */
-  private static String getEventJson(final String label) {
-    if (!label.contains("engage") && !label.contains("static"))
-      return "";
-
-    final String sub = label.substring(1, 7);
-
-    if (sub.equals("engage")) {
-      return label.substring(label.lastIndexOf("?id=") + 4, label.lastIndexOf("?id=") + 40);
-    } else if (sub.equals("static")) {
-      return label.substring(label.lastIndexOf("yer/") + 4, label.lastIndexOf("yer/") + 40);
-    }
-    return "";
-  }
-
-  /**
-   * Checks all emitted ViewImpressions for duplicates. Duplicates are merged into one impression.
+   * Merges two impressions of the same episode, e.g. if it was played under several URLs.
    *
-   * @param newViewImpression Newly emitted Impression
+   * @param old Impression seen first
+   * @param newViewImpression Impression of the same episode seen later
+   * @return Impression with the summed up stats and the subtables of both
    */
   @NonNull
-  public static ArrayList<ViewImpression> reduceViewImpressions(final ArrayList<ViewImpression> oldList,
-                                                                final ViewImpression newViewImpression) {
-    final String eventId = newViewImpression.getEventId();
-    // If the list already contains an Impression with the same eventId as the new Impression, merge
-    // both into one Impression
-    if (oldList.contains(newViewImpression)) {
-
-      final ViewImpression old = oldList.get(oldList.indexOf(newViewImpression));
-      // Merge stats of old and new Impression
-      final int plays = old.getPlays() + newViewImpression.getPlays();
-      final int visitors = old.getVisitors() + newViewImpression.getVisitors();
-      final int finishes = old.getFinishes() + newViewImpression.getFinishes();
-      final ArrayList<String> idSubtables = old.getSubtables();
-      idSubtables.addAll(newViewImpression.getSubtables());
-      // Create now ViewImpression with merged stats, since ViewImpressions are immutable
-      final ViewImpression combined = new ViewImpression(eventId, old.getOrgaId(), old.getSeriesId(), plays,
-              visitors, finishes, old.getDate(), idSubtables);
-      // Replace old impression with new, combined ViewImpression
-      oldList.set(oldList.indexOf(newViewImpression), combined);
-
-    } else {
-      // Else just add the ViewImpression to the list
-      oldList.add(newViewImpression);
-    }
-    return oldList;
+  public static ViewImpression mergeViewImpressions(final ViewImpression old,
+                                                    final ViewImpression newViewImpression) {
+    // Merge stats of old and new Impression
+    final int plays = old.getPlays() + newViewImpression.getPlays();
+    final int visitors = old.getVisitors() + newViewImpression.getVisitors();
+    final int finishes = old.getFinishes() + newViewImpression.getFinishes();
+    final ArrayList<String> idSubtables = old.getSubtables();
+    idSubtables.addAll(newViewImpression.getSubtables());
+    // Create now ViewImpression with merged stats, since ViewImpressions are immutable
+    return new ViewImpression(old.getEventId(), old.getOrgaId(), old.getSeriesId(), plays, visitors, finishes,
+            old.getDate(), idSubtables);
   }
 }
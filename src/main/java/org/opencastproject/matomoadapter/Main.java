@@ -21,8 +21,12 @@
 
 package org.opencastproject.matomoadapter;
 
-import org.opencastproject.matomoadapter.influxdbclient.InfluxDBConfig;
 import org.opencastproject.matomoadapter.influxdbclient.InfluxDBProcessor;
+import org.opencastproject.matomoadapter.influxdbclient.LineProtocolPoint;
+import org.opencastproject.matomoadapter.influxdbclient.PointDigests;
+import org.opencastproject.matomoadapter.influxdbclient.SegmentBucketsImpression;
+import org.opencastproject.matomoadapter.influxdbclient.SegmentCodec;
+import org.opencastproject.matomoadapter.influxdbclient.SegmentsImpression;
 import org.opencastproject.matomoadapter.influxdbclient.ViewImpression;
 import org.opencastproject.matomoadapter.matclient.MatomoClient;
 import org.opencastproject.matomoadapter.matclient.MatomoUtils;
@@ -31,18 +35,33 @@ import org.opencastproject.matomoadapter.occlient.OpencastClient;
 import org.influxdb.InfluxDBIOException;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Writer;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.OffsetDateTime;
+import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
@@ -67,32 +86,74 @@ public final class Main {
     // Preliminaries: command line parsing, config file parsing
     final CommandLine commandLine = CommandLine.parse(args);
     final ConfigFile configFile = ConfigFile.readFile(commandLine.getConfigFile());
-    final Path p = configFile.getPathToDate();
     // Log configuration
     configureLog(configFile);
     LOGGER.info("Logging configured");
+    // Opened first, a replay sets up the date file of its recording
+    final TrafficArchive traffic = openTrafficArchive(configFile);
+
+    // Open the local segment store, if configured, and seed it from InfluxDB when empty or requested
+    final SegmentStore store = openSegmentStore(configFile, commandLine.isRebuildSegmentStore());
+    // Without a store, a filter of known episodes avoids querying InfluxDB for episodes without segment data
+    final SegmentFilter filter = store == null ?
+            openSegmentFilter(configFile, commandLine.isRebuildSegmentStore()) : null;
+    if (commandLine.isRebuildSegmentStore())
+      System.exit(0);
+    final PointDigests digests = openPointDigests(configFile);
+    final DaySnapshots snapshots = openSnapshots(configFile);
+    final DayJournal journal = configFile.getDayJournal() != null ? DayJournal.open(configFile.getDayJournal()) : null;
+    final ShardCoordinator shards = openShards(configFile);
+    final SegmentDeferrals deferrals = openSegmentDeferrals(configFile);
+    // A replay runs as of the time of its recording
+    final Clock clock = traffic != null && traffic.getMode() == TrafficArchive.Mode.REPLAY ?
+            Clock.offset(Clock.systemDefaultZone(), Duration.between(Instant.now(), traffic.getStart())) :
+            Clock.systemDefaultZone();
 
     try {
       // Initialize all clients (Opencast, Matomo)
-      final MatomoClient matClient = new MatomoClient(configFile.getMatomoConfig(), LOGGER);
-      final OpencastClient ocClient = new OpencastClient(configFile.getOpencastConfig(), LOGGER);
+      final HttpTimings httpTimings = configFile.isHttpTiming() ? new HttpTimings() : null;
+      final MatomoClient matClient = new MatomoClient(configFile.getMatomoConfig(), LOGGER, httpTimings, traffic);
+      final OpencastClient ocClient = new OpencastClient(configFile.getOpencastConfig(), LOGGER, httpTimings,
+              traffic);
 
       // Schedule a task for updates
       final Timer timer = new Timer("Timer");
       final long delay = 1000L;
       // Period between executions
       final long period = 1000L * 60L * 60L * 24L * configFile.getInterval();
+      final boolean daemon = configFile.isDaemon();
+      // In daemon mode, the InfluxDB connection is kept open between runs and checked off the write path
+      final InfluxDBProcessor influxPro = daemon ? openDaemonInfluxDB(configFile, digests) : null;
       final TimerTask scheduledTask = new TimerTask() {
+        // End of the previous run, in milliseconds
+        private long lastEnd;
+
         public void run() {
+          // A run which was due before the previous one ended is skipped, not queued up
+          if (daemon && this.lastEnd > scheduledExecutionTime()) {
+            LOGGER.warn("Previous run overlapped this one, skipping the run scheduled for {}",
+                    Instant.ofEpochMilli(scheduledExecutionTime()));
+            return;
+          }
           final long start = System.nanoTime();
           // (Re-)Start schedulers for parallelism
-          Schedulers.start();
+          if (!daemon)
+            Schedulers.start();
           // Fetch statistics for a given time period
-          getStatisticsPeriod(matClient, ocClient, configFile.getInfluxDBConfig(), p);
+          getStatisticsPeriod(matClient, ocClient, configFile, store, filter, digests, snapshots, journal,
+                  shards, deferrals, influxPro, clock);
           final long end = System.nanoTime();
           final long time = end - start;
-          LOGGER.info("Statistics updated on: {}, elapsed time: {}ns, Next update on: {}", LocalDate.now(), time,
-                  LocalDate.now().plusDays(configFile.getInterval()));
+          LOGGER.info("Statistics updated on: {}, elapsed time: {}ns, Next update on: {}", LocalDate.now(clock),
+                  time, LocalDate.now(clock).plusDays(configFile.getInterval()));
+          // Report where HTTP time went during this run
+          if (httpTimings != null)
+            httpTimings.report(LOGGER);
+          matClient.reportCache();
+          ocClient.reportHedging();
+          this.lastEnd = System.currentTimeMillis();
+          if (daemon)
+            return;
           // Shutdown schedulers to avoid memory leaks and CPU usage
           Schedulers.shutdown();
           // Run garbage collector once manually before sleep to free up memory
@@ -100,50 +161,275 @@ public final class Main {
         }
       };
       timer.scheduleAtFixedRate(scheduledTask, delay, period);
+      if (configFile.getIncrementalInterval() > 0) {
+        // Polls run on the same timer thread, so they never overlap with a regular run
+        final long pollPeriod = 1000L * 60L * configFile.getIncrementalInterval();
+        timer.schedule(new TimerTask() {
+          // Day of the previous poll
+          private LocalDate polled;
+
+          public void run() {
+            if (!daemon)
+              Schedulers.start();
+            this.polled = pollStatistics(matClient, ocClient, configFile, store, filter, digests, snapshots,
+                    shards, deferrals, influxPro, clock, this.polled);
+            // Like the regular run, don't keep the schedulers' threads alive until the next one
+            if (!daemon)
+              Schedulers.shutdown();
+          }
+        }, pollPeriod, pollPeriod);
+      }
     } catch (final ClientConfigurationException e) {
       LOGGER.error("Client configuration error: ", e);
       System.exit(ExitStatuses.CLIENT_CONFIGURATION_ERROR);
     }
   }
 
+  /**
+   * Open the segment store configured in the config file. If it's empty or a rebuild is requested, it is
+   * (re-)seeded from the segments_daily measurement in InfluxDB.
+   *
+   * @param configFile Config file parameters
+   * @param rebuild True, if the store should be rebuilt even if it's not empty
+   * @return The opened store, or null if none is configured
+   */
+  private static SegmentStore openSegmentStore(final ConfigFile configFile, final boolean rebuild) {
+    if (configFile.getSegmentStore() == null) {
+      if (rebuild && configFile.getSegmentFilter() == null) {
+        LOGGER.error("Can't rebuild, neither adapter.segment-store nor adapter.segment-filter is configured");
+        System.exit(ExitStatuses.CONFIG_FILE_PARSE_ERROR);
+      }
+      return null;
+    }
+    try {
+      final SegmentStore store = SegmentStore.open(configFile.getSegmentStore());
+      if (rebuild || store.isEmpty()) {
+        final InfluxDBProcessor influxPro = new InfluxDBProcessor(configFile.getInfluxDBConfig(), LOGGER);
+        Utils.rebuildSegmentStore(store, influxPro);
+        influxPro.closeConnection();
+        LOGGER.info("Segment store seeded from InfluxDB with {} episodes", store.size());
+      }
+      return store;
+    } catch (final IOException e) {
+      LOGGER.error("File handling error: ", e);
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    } catch (final InfluxDBIOException e) {
+      LOGGER.error("InfluxDB error: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+      System.exit(ExitStatuses.INFLUXDB_RUNTIME_ERROR);
+    }
+    return null;
+  }
+
+  /**
+   * Open the segment filter configured in the config file. If no filter file exists yet or a rebuild is
+   * requested, it is seeded from the series of the segments_daily measurement in InfluxDB.
+   *
+   * @param configFile Config file parameters
+   * @param rebuild True, if the filter should be rebuilt even if it exists
+   * @return The opened filter, or null if none is configured
+   */
+  private static SegmentFilter openSegmentFilter(final ConfigFile configFile, final boolean rebuild) {
+    if (configFile.getSegmentFilter() == null)
+      return null;
+    try {
+      final SegmentFilter filter = SegmentFilter.open(configFile.getSegmentFilter(),
+              configFile.getSegmentFilterSize());
+      if (rebuild || !filter.isLoaded()) {
+        final InfluxDBProcessor influxPro = new InfluxDBProcessor(configFile.getInfluxDBConfig(), LOGGER);
+        Utils.rebuildSegmentFilter(filter, influxPro);
+        influxPro.closeConnection();
+        LOGGER.info("Segment filter seeded from InfluxDB with about {} episodes", filter.approximateSize());
+      }
+      if (filter.approximateSize() > filter.getExpectedInsertions())
+        LOGGER.warn("Segment filter holds about {} episodes, more than adapter.segment-filter-size {}. "
+                + "Raise it and run with --rebuild-segment-store", filter.approximateSize(),
+                filter.getExpectedInsertions());
+      return filter;
+    } catch (final IOException e) {
+      LOGGER.error("File handling error: ", e);
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    } catch (final InfluxDBIOException e) {
+      LOGGER.error("InfluxDB error: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+      System.exit(ExitStatuses.INFLUXDB_RUNTIME_ERROR);
+    }
+    return null;
+  }
+
+  /**
+   * Load the digests of written points, if configured.
+   *
+   * @param configFile Config file parameters
+   * @return The digests, or null if none are configured
+   */
+  private static PointDigests openPointDigests(final ConfigFile configFile) {
+    if (configFile.getWriteDigests() == null)
+      return null;
+    try {
+      final PointDigests digests = PointDigests.open(configFile.getWriteDigests(), configFile.getWriteDigestsSize());
+      LOGGER.info("Loaded digests of {} written points", digests.size());
+      return digests;
+    } catch (final IOException e) {
+      LOGGER.error("File handling error: ", e);
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    }
+    return null;
+  }
+
+  /**
+   * Open the snapshot directory, if configured.
+   *
+   * @param configFile Config file parameters
+   * @return The snapshots, or null if none are configured
+   */
+  private static DaySnapshots openSnapshots(final ConfigFile configFile) {
+    if (configFile.getSnapshotDir() == null)
+      return null;
+    try {
+      return DaySnapshots.open(configFile.getSnapshotDir());
+    } catch (final IOException e) {
+      LOGGER.error("File handling error: ", e);
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    }
+    return null;
+  }
+
+  /**
+   * Open the traffic archive for recording or replaying, if configured. A recording is finished on shutdown.
+   * A replay starts from the date file of the recording. Its local state, configured in the config file, is
+   * kept in a scratch directory, see <code>ConfigFile</code>.
+   *
+   * @param configFile Config file parameters
+   * @return The archive, or null if neither recording nor replaying is configured
+   */
+  private static TrafficArchive openTrafficArchive(final ConfigFile configFile) {
+    try {
+      if (configFile.getTrafficReplay() != null) {
+        final TrafficArchive traffic = TrafficArchive.replay(configFile.getTrafficReplay(),
+                configFile.isTrafficReplayLatency());
+        writeDateFile(configFile.getPathToDate(), traffic.getDateFile());
+        LOGGER.info("Replaying Matomo and Opencast responses from {}, recorded at {}, local state in {}",
+                configFile.getTrafficReplay(), traffic.getStart(), configFile.getPathToDate().getParent());
+        return traffic;
+      }
+      if (configFile.getTrafficRecord() != null) {
+        LOGGER.info("Recording Matomo and Opencast responses to {}", configFile.getTrafficRecord());
+        final TrafficArchive traffic = TrafficArchive.record(configFile.getTrafficRecord(), Instant.now(),
+                readDateFile(configFile.getPathToDate()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            traffic.close();
+          } catch (final IOException e) {
+            LOGGER.warn("Can't finish traffic recording: {}", e.getMessage());
+          }
+        }));
+        return traffic;
+      }
+    } catch (final IOException e) {
+      LOGGER.error("File handling error: ", e);
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    }
+    return null;
+  }
+
   /**
    * Checks the last date in file and updates statistics for each day between that date and today.
-   * After finishing a day, updates the date file.
+   * After finishing a day, updates the date file. Afterwards, the days of the resync window, which were
+   * not fetched in this run, are fetched again and compared with their snapshots.
    *
    * @param matClient Matomo external API client instance
    * @param ocClient Opencast external API client instance
-   * @param influxConfig InfluxDBConfiguration instance
-   * @param p Path to file containing the last update date
+   * @param configFile Config file parameters
+   * @param store Local segment store, may be null
+   * @param filter Filter of episodes with segment statistics, may be null
+   * @param digests Digests of written points, may be null
+   * @param snapshots Per-day snapshots, may be null
+   * @param journal Journal of the day in progress, may be null
+   * @param shards Shard of this instance, may be null
+   * @param deferrals Episodes deferred by the segment policy, may be null
+   * @param shared Connection kept open between runs, or null to connect for this run only
+   * @param clock Clock for the current day
    */
   private static void getStatisticsPeriod(final MatomoClient matClient, final OpencastClient ocClient,
-                                          final InfluxDBConfig influxConfig, final Path p) {
-
+                                          final ConfigFile configFile, final SegmentStore store,
+                                          final SegmentFilter filter, final PointDigests digests,
+                                          final DaySnapshots snapshots, final DayJournal journal,
+                                          final ShardCoordinator shards, final SegmentDeferrals deferrals,
+                                          final InfluxDBProcessor shared, final Clock clock) {
+    final Path p = configFile.getPathToDate();
     try {
       // Create InfluxDBProcessor instance from config file and connect to database
-      final InfluxDBProcessor influxPro = new InfluxDBProcessor(influxConfig, LOGGER);
+      final InfluxDBProcessor influxPro = shared != null ? shared :
+              new InfluxDBProcessor(configFile.getInfluxDBConfig(), LOGGER, digests);
+      final LocalDate dateNow = LocalDate.now(clock);
       // Check the file with last updated date. If no date is present set to yesterday
-      final LocalDate lastDate = Files.lines(p).findFirst().isPresent() ?
-              LocalDate.parse(Files.lines(p).findFirst().get()) :
-              LocalDate.now().minusDays(1);
+      final String lastDateRaw = readDateFile(p);
+      final LocalDate lastDate = !lastDateRaw.isEmpty() ? LocalDate.parse(lastDateRaw) : dateNow.minusDays(1);
 
-      final LocalDate dateNow = LocalDate.now();
       // Days between today and the last update
       final int days = (int) ChronoUnit.DAYS.between(lastDate, dateNow);
+      // Periods of the days written in this run are recomputed at its end. The last day of the previous run
+      // is included, in case that run ended before its periods were recomputed.
+      final PeriodRollups periods = configFile.isPeriodRollups() ? new PeriodRollups(configFile.isRollups()) : null;
+      if (periods != null && days > 0)
+        periods.touch(lastDate.minusDays(1));
 
       // Execute following steps for each day between the last update and today
       for (int i = days; i > 0; i--) {
-        // Used as timestamp for InfluxDB points
-        final OffsetDateTime date = OffsetDateTime.now().minusDays(i);
+        // A day with a snapshot was already written in part, by incremental polls or an interrupted run. Only
+        // its changes are written then, so the segment totals don't count it twice.
+        final DaySnapshots.Snapshot partial = snapshots != null ? snapshots.load(dateNow.minusDays(i)) : null;
+        // Otherwise, a crashed run's progress on the day is in the journal
+        final DayJournal dayJournal = partial == null ? journal : null;
+        if (dayJournal != null && dayJournal.begin(dateNow.minusDays(i)))
+          LOGGER.info("Resuming {} from the day journal", dateNow.minusDays(i));
         // Get statistics for current date (queryDate)
-        getStatistics(matClient, ocClient, influxPro, date);
+        try (ImpressionAggregator aggregator = newAggregator(configFile)) {
+          getStatistics(matClient, ocClient, influxPro, startOfDay(dateNow.minusDays(i)), aggregator, store, filter,
+                  snapshots, partial, dayJournal, shards, deferrals, Flowable.bufferSize(), configFile);
+        }
+        // Sharded, the rollups of a day are written once all shards finished it
+        if (shards != null)
+          shards.finish(dateNow.minusDays(i), day -> finalizeDay(influxPro, configFile, day));
+        else if (periods != null)
+          periods.touch(dateNow.minusDays(i));
         // Write current date into file
-        final Writer fileWriter = new FileWriter(String.valueOf(p), false);
-        fileWriter.write(dateNow.minusDays(i - 1).toString());
-        fileWriter.flush();
-        fileWriter.close();
+        writeDate(p, dateNow.minusDays(i - 1));
+        if (journal != null)
+          journal.clear();
+      }
+
+      if (snapshots != null) {
+        // Matomo re-archives recent days. Fetch the days of the window again, which weren't fetched above,
+        // oldest first and with less concurrency than regular days.
+        final LocalDate firstFetched = dateNow.minusDays(Math.max(days, 0));
+        for (int i = configFile.getResyncDays(); i > 0; i--) {
+          final LocalDate day = dateNow.minusDays(i);
+          if (!day.isBefore(firstFetched))
+            break;
+          // Without a snapshot, it's unknown what the day contributed to the segment totals
+          final DaySnapshots.Snapshot previous = snapshots.load(day);
+          if (previous == null)
+            continue;
+          LOGGER.info("Resyncing statistics for date: {}", day);
+          try (ImpressionAggregator aggregator = newAggregator(configFile)) {
+            getStatistics(matClient, ocClient, influxPro, startOfDay(day), aggregator, store, filter, snapshots,
+                    previous, null, shards, deferrals, configFile.getResyncConcurrency(), configFile);
+          }
+          // Sharded, the day's rollups are recomputed from all shards' impressions written so far
+          if (shards != null && configFile.isRollups())
+            DayRollup.recompute(influxPro, day);
+          if (periods != null)
+            periods.touch(day);
+        }
+        snapshots.prune(dateNow.minusDays(Math.max(1, configFile.getResyncDays())));
       }
+      if (deferrals != null)
+        fetchDeferred(matClient, influxPro, store, filter, snapshots, deferrals, configFile, dateNow);
+      if (periods != null)
+        periods.update(influxPro, LOGGER);
       // Close connection to InfluxDB
-      influxPro.closeConnection();
+      if (shared == null)
+        influxPro.closeConnection();
     } catch (final IOException e) {
       LOGGER.error("File handling error: ", e);
       System.exit(ExitStatuses.FILE_HANDLING_ERROR);
@@ -157,49 +443,521 @@ public final class Main {
     }
   }
 
+  /**
+   * Fetch today's statistics again and write only what changed since the previous poll, using the day's
+   * snapshot. The first poll after midnight finalizes the previously polled day the same way. Period rollups
+   * are left to the regular runs.
+   *
+   * @param matClient Matomo external API client instance
+   * @param ocClient Opencast external API client instance
+   * @param configFile Config file parameters
+   * @param store Local segment store, may be null
+   * @param filter Filter of episodes with segment statistics, may be null
+   * @param digests Digests of written points, may be null
+   * @param snapshots Per-day snapshots
+   * @param shards Shard of this instance, may be null
+   * @param deferrals Episodes deferred by the segment policy, may be null
+   * @param shared Connection kept open between runs, or null to connect for this poll only
+   * @param clock Clock for the current day
+   * @param polled Day of the previous poll, null on the first poll
+   * @return The polled day
+   */
+  private static LocalDate pollStatistics(final MatomoClient matClient, final OpencastClient ocClient,
+                                          final ConfigFile configFile, final SegmentStore store,
+                                          final SegmentFilter filter, final PointDigests digests,
+                                          final DaySnapshots snapshots, final ShardCoordinator shards,
+                                          final SegmentDeferrals deferrals, final InfluxDBProcessor shared,
+                                          final Clock clock, final LocalDate polled) {
+    final LocalDate today = LocalDate.now(clock);
+    try {
+      final InfluxDBProcessor influxPro = shared != null ? shared :
+              new InfluxDBProcessor(configFile.getInfluxDBConfig(), LOGGER, digests);
+      final List<LocalDate> days = polled != null && polled.isBefore(today) ? List.of(polled, today) :
+              List.of(today);
+      for (final LocalDate day : days) {
+        final long start = System.nanoTime();
+        try (ImpressionAggregator aggregator = newAggregator(configFile)) {
+          getStatistics(matClient, ocClient, influxPro, startOfDay(day), aggregator, store, filter, snapshots,
+                  snapshots.load(day), null, shards, deferrals, configFile.getResyncConcurrency(), configFile);
+        }
+        LOGGER.info("INCREMENTAL, {} {}, elapsed time: {}ns", day.equals(today) ? "polled" : "finalized", day,
+                System.nanoTime() - start);
+      }
+      if (shared == null)
+        influxPro.closeConnection();
+    } catch (final IOException e) {
+      LOGGER.error("File handling error: ", e);
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    } catch (final InfluxDBIOException e) {
+      LOGGER.error("InfluxDB error: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+      System.exit(ExitStatuses.INFLUXDB_RUNTIME_ERROR);
+    }
+    return today;
+  }
+
+  /**
+   * Write what needs all shards' impressions of a day: the series and organization rollups and the day's
+   * periods.
+   *
+   * @param influxPro InfluxDBProcessor instance
+   * @param configFile Config file parameters
+   * @param day Day all shards finished
+   */
+  private static void finalizeDay(final InfluxDBProcessor influxPro, final ConfigFile configFile,
+                                  final LocalDate day) {
+    if (configFile.isRollups())
+      DayRollup.recompute(influxPro, day);
+    if (configFile.isPeriodRollups()) {
+      final PeriodRollups periods = new PeriodRollups(configFile.isRollups());
+      periods.touch(day);
+      periods.update(influxPro, LOGGER);
+    }
+    LOGGER.info("SHARDS, all {} shards finished {}", configFile.getShardCount(), day);
+  }
+
+  /**
+   * Load the episodes deferred by the segment policy, if configured.
+   *
+   * @param configFile Config file parameters
+   * @return The deferrals, or null if skipped episodes are dropped
+   */
+  private static SegmentDeferrals openSegmentDeferrals(final ConfigFile configFile) {
+    if (configFile.getSegmentDeferrals() == null)
+      return null;
+    try {
+      final SegmentDeferrals deferrals = SegmentDeferrals.open(configFile.getSegmentDeferrals());
+      LOGGER.info("Segment deferrals loaded, {} episode days", deferrals.size());
+      return deferrals;
+    } catch (final IOException e) {
+      LOGGER.error("File handling error: ", e);
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    }
+    return null;
+  }
+
+  /**
+   * Open the shard directory, if the episodes are split between several instances.
+   *
+   * @param configFile Config file parameters
+   * @return The coordinator, or null if there's only one shard
+   */
+  private static ShardCoordinator openShards(final ConfigFile configFile) {
+    if (configFile.getShardCount() < 2)
+      return null;
+    try {
+      final ShardCoordinator shards = ShardCoordinator.open(configFile.getShardDir(), configFile.getShardIndex(),
+              configFile.getShardCount());
+      LOGGER.info("Running as shard {} of {}", shards.getIndex(), shards.getCount());
+      return shards;
+    } catch (final IOException e) {
+      LOGGER.error("File handling error: ", e);
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    }
+    return null;
+  }
+
+  /**
+   * Connect to InfluxDB for daemon mode. Instead of pinging before every batch, a background thread checks
+   * the connection at the configured interval and logs when it's lost and recovered.
+   *
+   * @param configFile Config file parameters
+   * @param digests Digests of written points, may be null
+   * @return Connection, which stays open for the lifetime of the adapter
+   */
+  private static InfluxDBProcessor openDaemonInfluxDB(final ConfigFile configFile, final PointDigests digests) {
+    try {
+      final InfluxDBProcessor influxPro = new InfluxDBProcessor(configFile.getInfluxDBConfig(), LOGGER, digests,
+              false);
+      final ScheduledExecutorService health = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "InfluxDB health check");
+        t.setDaemon(true);
+        return t;
+      });
+      final AtomicBoolean healthy = new AtomicBoolean(true);
+      health.scheduleWithFixedDelay(() -> {
+        final boolean good = influxPro.checkHealth();
+        if (good && !healthy.getAndSet(true))
+          LOGGER.info("INFLUXPING, connection recovered");
+        else if (!good)
+          healthy.set(false);
+      }, configFile.getHealthCheckInterval(), configFile.getHealthCheckInterval(), TimeUnit.SECONDS);
+      return influxPro;
+    } catch (final InfluxDBIOException e) {
+      LOGGER.error("InfluxDB error: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+      System.exit(ExitStatuses.INFLUXDB_RUNTIME_ERROR);
+    }
+    return null;
+  }
+
+  /**
+   * @param configFile Config file parameters
+   * @return Empty aggregator for the impressions of one day
+   */
+  private static ImpressionAggregator newAggregator(final ConfigFile configFile) {
+    return new ImpressionAggregator(configFile.getSpillThreshold(), configFile.getSpillDir());
+  }
+
+  /**
+   * Used as timestamp for InfluxDB points. Start of day, so that a re-run of a day hits the same points.
+   *
+   * @param day Day of the statistics
+   * @return Start of the day in the system time zone
+   */
+  private static OffsetDateTime startOfDay(final LocalDate day) {
+    return day.atStartOfDay(ZoneId.systemDefault()).toOffsetDateTime();
+  }
+
   /**
    * Inserts/Updates date from Matomo into InfluxDB. In the first phase all view-related
    * date is updated (plays, finishes, visits). Secondly, segment-related statistics are
    * fetched.
+   * <p>
+   * If a previous snapshot of the day is given, the day is resynced: only impressions that differ from the
+   * snapshot are written, and only their segments are fetched again. The segment totals are corrected by
+   * the difference between the new and the snapshot's segment data, so nothing is counted twice.
    *
    * @param matClient Matomo external API client instance
    * @param ocClient Opencast external API client instance
    * @param influxPro InfluxDBProcessor instance
    * @param date Date for the requests
+   * @param aggregator Empty aggregator, unites the day's impressions
+   * @param store Local segment store, may be null
+   * @param filter Filter of episodes with segment statistics, may be null
+   * @param snapshots Per-day snapshots, the day's snapshot is saved after the write. May be null
+   * @param previous Snapshot of an earlier fetch of this day, null if the day is fetched the first time
+   * @param journal Journal of the day, begun by the caller. Episodes committed in it are skipped. May be null
+   * @param shards Shard of this instance, only its episodes are fetched. May be null
+   * @param deferrals Episodes deferred by the segment policy, may be null to skip them instead
+   * @param maxConcurrency Maximum number of concurrent requests per phase
+   * @param configFile Config file parameters, for the kinds of points to write
+   * @throws IOException If spilling impressions, committing the segment store or saving the filter or
+   *                     snapshot fails
    */
   private static void getStatistics(final MatomoClient matClient, final OpencastClient ocClient,
-                                    final InfluxDBProcessor influxPro, final OffsetDateTime date) {
+                                    final InfluxDBProcessor influxPro, final OffsetDateTime date,
+                                    final ImpressionAggregator aggregator, final SegmentStore store,
+                                    final SegmentFilter filter, final DaySnapshots snapshots,
+                                    final DaySnapshots.Snapshot previous, final DayJournal journal,
+                                    final ShardCoordinator shards, final SegmentDeferrals deferrals,
+                                    final int maxConcurrency, final ConfigFile configFile) throws IOException {
 
-    // Used as seed in reduce method, as well as starting point in the second phase. After the first phase,
-    // it contains all the unique episode ViewImpressions from one day.
-    final ArrayList<ViewImpression> seed = new ArrayList<>();
+    final DaySnapshots.Snapshot snapshot = previous != null ? previous.copy() :
+            snapshots != null ? new DaySnapshots.Snapshot() : null;
+    // With a journal, the batch is written every checkpoint-size episodes and the episodes are journaled
+    final Map<String, String> pendingViews = new HashMap<>();
+    final List<DayJournal.Segments> pendingSegments = new ArrayList<>();
 
     // First, get all statistical data for all viewed episodes on given date
     MatomoUtils.getViewed(LOGGER, matClient, date)
             // Convert raw JSONObjects to ViewImpressions
-            .flatMap(json -> ImpressionUtils.createViewImpression(ocClient, json, date)
-                    .subscribeOn(Schedulers.io()))
-            // Filter out / unite duplicate ViewImpressions. Outgoing stream contains unique episode ViewImpressions
-            .reduce(seed, ImpressionUtils::reduceViewImpressions)
-            .flattenAsFlowable(impressions -> impressions)
-            // Get Points from Impressions
-            .flatMap(viewImpression -> Flowable.just(viewImpression)
-                    .subscribeOn(Schedulers.io()).map(ViewImpression::toPoint))
-            // Add all points to InfluxDB batch, instead of writing each point separately
-            .blockingSubscribe(influxPro::addToBatch, Main::processError, 2048);
-
-    // List of unique ViewImpressions tells us, for which episodes we need to fetch segment data
-    Flowable.just(seed).flatMapIterable(impressions -> impressions)
+            .flatMap(json -> ImpressionUtils.createViewImpression(ocClient, matClient.getEventIdExtractor(), json,
+                    date, journal, shards).subscribeOn(Schedulers.io()), maxConcurrency)
+            // Unite duplicate ViewImpressions, spilling to disk on very large days
+            .blockingSubscribe(aggregator::add, Main::processError, 2048);
+    aggregator.finish();
+    if (aggregator.isSpilled())
+      LOGGER.info("Impressions of {} spilled to disk, {} episodes", date.toLocalDate(), aggregator.size());
+
+    // Series and organization totals are summed up over all of the day's impressions, even on a resync. A
+    // shard only sees its own impressions, the totals are recomputed inside InfluxDB instead.
+    final DayRollup rollup = configFile.isRollups() && shards == null ? new DayRollup() : null;
+    // On a resync, impressions equal to the snapshot are already in InfluxDB
+    final AtomicInteger written = new AtomicInteger();
+    Flowable.fromIterable(aggregator)
+            .doOnNext(impression -> {
+              if (rollup != null)
+                rollup.add(impression);
+            })
+            .filter(impression -> previous == null || previous.isChanged(impression))
+            // Encode all impressions into the InfluxDB batch, instead of writing each point separately
+            .blockingSubscribe(impression -> {
+              if (snapshot != null)
+                snapshot.putViews(impression);
+              // On a resumed day, committed impressions are already in InfluxDB
+              if (journal != null && journal.isViewsCommitted(impression.getOrgaId(), impression.getEventId()))
+                return;
+              influxPro.addToBatch(impression);
+              written.incrementAndGet();
+              if (journal != null) {
+                pendingViews.put(DayJournal.key(impression.getOrgaId(), impression.getEventId()),
+                        impression.getSeriesId());
+                if (pendingViews.size() >= configFile.getCheckpointSize()) {
+                  writeBatch(influxPro, store, filter);
+                  journal.commitViews(pendingViews);
+                  pendingViews.clear();
+                }
+              }
+            }, Main::processError, 2048);
+    if (rollup != null)
+      rollup.points(date.toInstant()).forEach(influxPro::addToBatch);
+
+    final SegmentBucketsImpression.Layout layout = configFile.getSegmentBuckets() > 0 ?
+            new SegmentBucketsImpression.Layout(configFile.getSegmentBuckets()) : null;
+    // Episodes prepared by a crashed run may be merged into the totals already. They're written again as
+    // journaled, instead of being fetched and merged again.
+    final List<DayJournal.Segments> prepared = journal != null ? journal.getPreparedSegments()
+            : Collections.emptyList();
+    if (!prepared.isEmpty()) {
+      LOGGER.info("Writing {} prepared segment statistics of {} again", prepared.size(), date.toLocalDate());
+      for (final DayJournal.Segments episode : prepared) {
+        if (episode.getDay() != null) {
+          if (snapshot != null)
+            snapshot.putSegments(episode.getOrgaId(), episode.getEventId(), episode.getDay());
+          if (layout != null)
+            influxPro.addToBatch(SegmentBucketsImpression.of(new SegmentsImpression(episode.getEventId(),
+                    episode.getOrgaId(), SegmentCodec.decode(episode.getDay()), date.toInstant()), layout));
+        }
+        if (episode.getTotal() != null)
+          addSegmentPoint(influxPro, store, new SegmentsImpression(episode.getEventId(), episode.getOrgaId(),
+                  SegmentCodec.decode(episode.getTotal()), episode.getTime())
+                  .withCompactEncoding(SegmentCodec.isCompact(episode.getTotal())));
+        if (filter != null)
+          filter.put(episode.getOrgaId(), episode.getEventId());
+      }
+      writeBatch(influxPro, store, filter);
+      journal.commitViews(pendingViews);
+      pendingViews.clear();
+      journal.commitSegments(prepared);
+    }
+    if (journal != null && snapshot != null)
+      journal.restoreSegments(snapshot);
+
+    final SegmentPolicy.Day policy = new SegmentPolicy(configFile.getSegmentMinPlays(), configFile.getSegmentTop())
+            .day(aggregator, previous == null);
+    // The written ViewImpressions tell us, for which episodes we need to fetch segment data. Read them again
+    // instead of keeping them, the snapshot filter is unchanged by the first phase.
+    Flowable.fromIterable(aggregator)
+            .filter(impression -> previous == null || previous.isChanged(impression))
+            .filter(impression -> journal == null
+                    || !journal.isSegmentsCommitted(impression.getOrgaId(), impression.getEventId()))
+            // Episodes with little traffic are deferred to the weekly pass, or skipped. On a resync, episodes
+            // whose segments are in the snapshot are merged already, e.g. by the weekly pass. Deferring them
+            // again would merge the whole day once more, only the difference to the snapshot is fetched.
+            .filter(impression -> {
+              if (policy.fetch(impression, hasSegments(previous, impression))) {
+                if (deferrals != null)
+                  deferrals.remove(date.toLocalDate(), impression);
+                return true;
+              }
+              if (deferrals != null)
+                deferrals.defer(date.toLocalDate(), impression);
+              return false;
+            })
             // Request segment statistics and build SegmentsImpressions
             .flatMap(viewImpression -> ImpressionUtils.createSegmentsImpression(matClient, viewImpression, date)
-                    .subscribeOn(Schedulers.io()))
-            // If an InfluxDB point for an episode exists, overwrite it. Otherwise, insert point normally
-            .flatMap(seg -> Utils.checkSegments(seg, influxPro)
-                    .subscribeOn(Schedulers.io()))
-            .blockingSubscribe(influxPro::addToBatch, Main::processError, 2048);
+                    .subscribeOn(Schedulers.io()), maxConcurrency)
+            .flatMap(seg -> {
+              // Remember the day's segment data, before it's merged into the totals
+              final String day = snapshot != null || journal != null && layout != null ? seg.getSegments().toString()
+                      : null;
+              if (snapshot != null)
+                snapshot.putSegments(seg.getOrgaId(), seg.getEventId(), day);
+              // An episode's points are batched together, so a checkpoint never splits them
+              return segmentPoints(seg, previous, layout, influxPro, store, filter, configFile).toList().toFlowable()
+                      .map(list -> new AbstractMap.SimpleImmutableEntry<>(
+                              new DayJournal.Segments(seg.getOrgaId(), seg.getEventId(), day, null, null), list));
+            }, maxConcurrency)
+            .blockingSubscribe(episode -> {
+              SegmentsImpression total = null;
+              for (final LineProtocolPoint point : episode.getValue()) {
+                addSegmentPoint(influxPro, store, point);
+                if (point instanceof SegmentsImpression)
+                  total = (SegmentsImpression) point;
+              }
+              if (journal == null)
+                return;
+              // The merged totals are journaled before they're written, a resumed day must not merge them again
+              final DayJournal.Segments seg = episode.getKey();
+              pendingSegments.add(new DayJournal.Segments(seg.getOrgaId(), seg.getEventId(), seg.getDay(),
+                      total != null ? total.getEncodedSegments() : null, total != null ? total.getDate() : null));
+              if (pendingSegments.size() >= configFile.getCheckpointSize()) {
+                journal.prepareSegments(pendingSegments);
+                writeBatch(influxPro, store, filter);
+                journal.commitSegments(pendingSegments);
+                pendingSegments.clear();
+              }
+            }, Main::processError, 2048);
+
+    if (previous != null)
+      LOGGER.info("Resync of {}: {} of {} impressions changed", date.toLocalDate(), written.get(), aggregator.size());
 
     // Write view statistics and (over-)write segment statistics to InfluxDB
-    influxPro.writeBatch();
+    if (journal != null)
+      journal.prepareSegments(pendingSegments);
+    writeBatch(influxPro, store, filter);
+    if (journal != null) {
+      journal.commitViews(pendingViews);
+      journal.commitSegments(pendingSegments);
+    }
+    policy.report(LOGGER, date.toLocalDate(), deferrals != null);
+    if (deferrals != null)
+      deferrals.save();
+    if (snapshots != null)
+      snapshots.save(date.toLocalDate(), snapshot);
+  }
+
+  /**
+   * Build the points of an episode's segment statistics: the bucket point and the (over-)written totals.
+   *
+   * @param seg The day's segment statistics of the episode
+   * @param previous Snapshot of an earlier fetch of the day, may be null
+   * @param layout Bucket layout, null if no bucket points are written
+   * @param influxPro InfluxDBProcessor instance
+   * @param store Local segment store, may be null
+   * @param filter Filter of episodes with segment statistics, may be null
+   * @param configFile Config file parameters, for the kinds of points to write
+   * @return The episode's points
+   */
+  private static Flowable<LineProtocolPoint> segmentPoints(final SegmentsImpression seg,
+                                                           final DaySnapshots.Snapshot previous,
+                                                           final SegmentBucketsImpression.Layout layout,
+                                                           final InfluxDBProcessor influxPro,
+                                                           final SegmentStore store, final SegmentFilter filter,
+                                                           final ConfigFile configFile) {
+    // Bucket points hold the day's data only, a resync simply overwrites them
+    final Flowable<LineProtocolPoint> buckets = layout != null ?
+            Flowable.just(SegmentBucketsImpression.of(seg, layout)) : Flowable.empty();
+    if (!configFile.isSegmentJson())
+      return buckets;
+    // On a resync, only the difference to the snapshot is added to the totals
+    SegmentsImpression merge = seg;
+    if (previous != null) {
+      final DaySnapshots.Record before = previous.get(seg.getOrgaId(), seg.getEventId());
+      merge = new SegmentsImpression(seg.getEventId(), seg.getOrgaId(),
+              Utils.diffSegmentJson(seg.getSegments(), before != null ? before.getSegments() : null),
+              seg.getDate());
+    }
+    // If an InfluxDB point for an episode exists, overwrite it. Otherwise, insert point normally
+    return Flowable.concat(buckets, Utils.checkSegments(merge, influxPro, store, filter,
+            configFile.isSegmentCompact())
+            .subscribeOn(Schedulers.io()));
+  }
+
+  /**
+   * Weekly pass over the deferred episodes of complete weeks. The segments of episodes with enough plays
+   * within the week are fetched for each of their deferred days, the others are dropped.
+   *
+   * @param matClient Matomo external API client instance
+   * @param influxPro InfluxDBProcessor instance
+   * @param store Local segment store, may be null
+   * @param filter Filter of episodes with segment statistics, may be null
+   * @param snapshots Per-day snapshots, updated with the fetched segments. May be null
+   * @param deferrals Deferred episodes
+   * @param configFile Config file parameters
+   * @param today Current day, only weeks before it are due
+   * @throws IOException If committing the segment store or saving the filter, snapshot or deferrals fails
+   */
+  private static void fetchDeferred(final MatomoClient matClient, final InfluxDBProcessor influxPro,
+                                    final SegmentStore store, final SegmentFilter filter,
+                                    final DaySnapshots snapshots, final SegmentDeferrals deferrals,
+                                    final ConfigFile configFile, final LocalDate today) throws IOException {
+    final SegmentBucketsImpression.Layout layout = configFile.getSegmentBuckets() > 0 ?
+            new SegmentBucketsImpression.Layout(configFile.getSegmentBuckets()) : null;
+    final Map<LocalDate, List<ViewImpression>> due = deferrals.dueWeeks(today,
+            configFile.getSegmentMinPlays(), LOGGER);
+    for (final Map.Entry<LocalDate, List<ViewImpression>> day : due.entrySet()) {
+      final OffsetDateTime date = startOfDay(day.getKey());
+      final DaySnapshots.Snapshot snapshot = snapshots != null ? snapshots.load(day.getKey()) : null;
+      Flowable.fromIterable(day.getValue())
+              .flatMap(imp -> ImpressionUtils.createSegmentsImpression(matClient, imp, date)
+                      .subscribeOn(Schedulers.io()), configFile.getResyncConcurrency())
+              .flatMap(seg -> {
+                if (snapshot != null)
+                  snapshot.putSegments(seg.getOrgaId(), seg.getEventId(), seg.getSegments().toString());
+                return segmentPoints(seg, null, layout, influxPro, store, filter, configFile);
+              }, configFile.getResyncConcurrency())
+              .blockingSubscribe(point -> addSegmentPoint(influxPro, store, point), Main::processError, 2048);
+      writeBatch(influxPro, store, filter);
+      // A day is done once it's written, a crash in a later day doesn't fetch it again
+      for (final ViewImpression imp : day.getValue())
+        deferrals.remove(day.getKey(), imp);
+      deferrals.save();
+      if (snapshot != null)
+        snapshots.save(day.getKey(), snapshot);
+    }
+    deferrals.save();
+  }
+
+  /**
+   * @param previous Snapshot of an earlier fetch of the day, may be null
+   * @param impression Episode of the day
+   * @return True, if the snapshot holds segment data of the episode
+   */
+  private static boolean hasSegments(final DaySnapshots.Snapshot previous, final ViewImpression impression) {
+    if (previous == null)
+      return false;
+    final DaySnapshots.Record before = previous.get(impression.getOrgaId(), impression.getEventId());
+    return before != null && before.getSegments() != null;
+  }
+
+  /**
+   * Add a segment point to the batch. Merged totals are staged in the segment store, so they're committed
+   * with the batch that holds them.
+   *
+   * @param influxPro InfluxDBProcessor instance
+   * @param store Local segment store, may be null
+   * @param point Bucket point or merged totals of an episode
+   */
+  private static void addSegmentPoint(final InfluxDBProcessor influxPro, final SegmentStore store,
+                                      final LineProtocolPoint point) {
+    influxPro.addToBatch(point);
+    if (store != null && point instanceof SegmentsImpression) {
+      final SegmentsImpression total = (SegmentsImpression) point;
+      store.stage(total.getOrgaId(), total.getEventId(),
+              new SegmentStore.Entry(total.getDate(), total.getEncodedSegments()));
+    }
+  }
+
+  /**
+   * Write the batch to InfluxDB. Only once InfluxDB has it, the merged segment totals and the filter are
+   * persisted.
+   *
+   * @param influxPro InfluxDBProcessor instance
+   * @param store Local segment store, may be null
+   * @param filter Filter of episodes with segment statistics, may be null
+   * @throws IOException If committing the segment store or saving the filter fails
+   */
+  private static void writeBatch(final InfluxDBProcessor influxPro, final SegmentStore store,
+                                 final SegmentFilter filter) throws IOException {
+    try {
+      influxPro.writeBatch();
+    } catch (final InfluxDBIOException e) {
+      if (store != null)
+        store.rollback();
+      throw e;
+    }
+    if (store != null)
+      store.commit();
+    if (filter != null)
+      filter.save();
+  }
+
+  /**
+   * Atomically replace the date file, a crash leaves either the old or the new date.
+   *
+   * @param p Date file
+   * @param date Next day to fetch
+   * @throws IOException If writing fails
+   */
+  private static void writeDate(final Path p, final LocalDate date) throws IOException {
+    writeDateFile(p, date.toString());
+  }
+
+  private static void writeDateFile(final Path p, final String content) throws IOException {
+    final Path tmp = p.resolveSibling(p.getFileName() + ".tmp");
+    Files.writeString(tmp, content);
+    Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @param p Date file
+   * @return First line of the date file, empty if there's no date yet
+   * @throws IOException If reading fails
+   */
+  private static String readDateFile(final Path p) throws IOException {
+    try (Stream<String> lines = Files.lines(p)) {
+      return lines.findFirst().orElse("");
+    }
   }
 
   /**
@@ -211,6 +969,12 @@ public final class Main {
     if (e instanceof ParsingJsonSyntaxException) {
       LOGGER.error("Couldn't parse json: " + ((ParsingJsonSyntaxException) e).getJson(), e);
       System.exit(ExitStatuses.JSON_SYNTAX_ERROR);
+    } else if (e instanceof UncheckedIOException) {
+      LOGGER.error("File handling error:", e);
+      System.exit(ExitStatuses.FILE_HANDLING_ERROR);
+    } else if (e instanceof InfluxDBIOException) {
+      LOGGER.error("InfluxDB error: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+      System.exit(ExitStatuses.INFLUXDB_RUNTIME_ERROR);
     } else if (e instanceof ClientConfigurationException) {
       LOGGER.error("Client configuration error:", e);
       System.exit(ExitStatuses.CLIENT_CONFIGURATION_ERROR);
@@ -0,0 +1,110 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import org.opencastproject.matomoadapter.influxdbclient.InfluxDBProcessor;
+
+import org.slf4j.Logger;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps weekly, monthly and yearly measurements next to the daily ones. Days written in a run, including
+ * resynced ones, mark their week, month and year. At the end of the run, only the marked periods are
+ * recomputed inside InfluxDB with <code>SELECT ... INTO</code>: weeks and months from the daily points, years
+ * from the monthly points. A period's point is timestamped with its first day, so recomputing it overwrites it.
+ * <p>
+ * Weeks start on Monday, periods start at midnight in the system time zone, like the daily points.
+ */
+public final class PeriodRollups {
+  private static final String FIELDS = "sum(plays) AS plays, sum(visitors) AS visitors, sum(finishes) AS finishes";
+
+  private final List<String> measurements;
+  private final Set<LocalDate> weeks = new TreeSet<>();
+  private final Set<LocalDate> months = new TreeSet<>();
+  private final Set<LocalDate> years = new TreeSet<>();
+
+  /**
+   * @param rollups True, if the series and organization rollups are written, their periods are kept as well
+   */
+  public PeriodRollups(final boolean rollups) {
+    this.measurements = new ArrayList<>();
+    this.measurements.add("impressions");
+    if (rollups) {
+      this.measurements.add("impressions_series");
+      this.measurements.add("impressions_organization");
+    }
+  }
+
+  /**
+   * Mark the periods containing a day as changed.
+   *
+   * @param day Day written to InfluxDB
+   */
+  public void touch(final LocalDate day) {
+    this.weeks.add(day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)));
+    this.months.add(day.withDayOfMonth(1));
+    this.years.add(day.withDayOfYear(1));
+  }
+
+  /**
+   * Recompute all marked periods and clear the marks.
+   *
+   * @param influxPro InfluxDB processor
+   * @param logger Logger
+   */
+  public void update(final InfluxDBProcessor influxPro, final Logger logger) {
+    long written = 0;
+    for (final String m : this.measurements) {
+      for (final LocalDate week : this.weeks)
+        written += recompute(influxPro, m + "_daily", m + "_weekly", week, week.plusWeeks(1));
+      for (final LocalDate month : this.months)
+        written += recompute(influxPro, m + "_daily", m + "_monthly", month, month.plusMonths(1));
+      // Years are summed up from the months, which are up to date now
+      for (final LocalDate year : this.years)
+        written += recompute(influxPro, m + "_monthly", m + "_yearly", year, year.plusYears(1));
+    }
+    logger.info("PERIODROLLUPS, weeks: {}, months: {}, years: {}, points written: {}", this.weeks.size(),
+            this.months.size(), this.years.size(), written);
+    this.weeks.clear();
+    this.months.clear();
+    this.years.clear();
+  }
+
+  private static long recompute(final InfluxDBProcessor influxPro, final String from, final String into,
+                                final LocalDate start, final LocalDate end) {
+    // Without GROUP BY time(), the points are timestamped with the lower time bound
+    return influxPro.selectInto("SELECT " + FIELDS + " INTO %1$s.%2$s." + into + " FROM %1$s.%2$s." + from
+            + " WHERE time >= " + epochSeconds(start) + "s AND time < " + epochSeconds(end) + "s GROUP BY *");
+  }
+
+  private static long epochSeconds(final LocalDate day) {
+    return day.atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+  }
+}
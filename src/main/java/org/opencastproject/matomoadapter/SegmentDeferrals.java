@@ -0,0 +1,203 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.opencastproject.matomoadapter;
+
+import org.opencastproject.matomoadapter.influxdbclient.ViewImpression;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Episodes whose segment statistics were skipped on their day by the segment policy. Instead of dropping them,
+ * they wait for a weekly pass: per week, an episode's plays on its skipped days are summed up. If they reach
+ * the policy's minimum, the segments of all its skipped days are fetched, otherwise they are dropped for good.
+ * Each day of an episode is either fetched on its day, or deferred, never both.
+ * <p>
+ * The deferred episodes are kept in memory and saved to one gzip compressed file, replaced atomically.
+ */
+public final class SegmentDeferrals {
+  private static final int MAGIC = 0x4F434446;
+
+  private final Path path;
+  // Day \0 organization \0 eventId, so the entries are ordered by day
+  private final TreeMap<String, ViewImpression> entries = new TreeMap<>();
+
+  private SegmentDeferrals(final Path path) {
+    this.path = path;
+  }
+
+  /**
+   * @param path Deferral file, loaded if it exists
+   * @return The deferred episodes
+   * @throws IOException If the file can't be read
+   */
+  public static SegmentDeferrals open(final Path path) throws IOException {
+    final SegmentDeferrals deferrals = new SegmentDeferrals(path);
+    if (!Files.exists(path))
+      return deferrals;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(path))))) {
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not a segment deferral file: " + path);
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        final LocalDate day = LocalDate.ofEpochDay(in.readLong());
+        final String orgaId = in.readUTF();
+        final String eventId = in.readUTF();
+        final String seriesId = in.readBoolean() ? in.readUTF() : null;
+        final int plays = in.readInt();
+        final int visitors = in.readInt();
+        final int finishes = in.readInt();
+        final int subtables = in.readInt();
+        final ArrayList<String> idSubtables = new ArrayList<>(subtables);
+        for (int s = 0; s < subtables; s++)
+          idSubtables.add(in.readUTF());
+        deferrals.entries.put(key(day, orgaId, eventId), new ViewImpression(eventId, orgaId, seriesId, plays,
+                visitors, finishes, day.atStartOfDay(ZoneId.systemDefault()).toInstant(), idSubtables));
+      }
+    }
+    return deferrals;
+  }
+
+  /**
+   * Defer an episode's segments, replacing an earlier deferral of the same day.
+   *
+   * @param day Day of the impression
+   * @param imp United impression of the episode
+   */
+  public synchronized void defer(final LocalDate day, final ViewImpression imp) {
+    this.entries.put(key(day, imp.getOrgaId(), imp.getEventId()), imp);
+  }
+
+  /**
+   * Forget a deferral, because the episode's segments of the day are fetched after all.
+   *
+   * @param day Day of the impression
+   * @param imp United impression of the episode
+   */
+  public synchronized void remove(final LocalDate day, final ViewImpression imp) {
+    this.entries.remove(key(day, imp.getOrgaId(), imp.getEventId()));
+  }
+
+  public synchronized int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Find the due episodes of all complete weeks, i.e. of the days before the given day's week, and drop the
+   * others. Due episodes stay deferred until they are written and <code>remove</code>d.
+   *
+   * @param today Current day, its week isn't complete yet
+   * @param minPlays Plays an episode needs within a week to be fetched
+   * @param logger Logger
+   * @return Impressions, whose segments are due, by day
+   */
+  public synchronized Map<LocalDate, List<ViewImpression>> dueWeeks(final LocalDate today, final int minPlays,
+                                                                   final Logger logger) {
+    final String end = today.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).toString();
+    // Week \0 organization \0 eventId to the summed up plays
+    final Map<String, Integer> weekly = new HashMap<>();
+    for (final Map.Entry<String, ViewImpression> e : this.entries.headMap(end).entrySet())
+      weekly.merge(weekKey(e.getKey(), e.getValue()), e.getValue().getPlays(), Integer::sum);
+
+    final Map<LocalDate, List<ViewImpression>> due = new TreeMap<>();
+    int dropped = 0;
+    final Iterator<Map.Entry<String, ViewImpression>> it = this.entries.headMap(end).entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<String, ViewImpression> e = it.next();
+      if (weekly.get(weekKey(e.getKey(), e.getValue())) >= minPlays) {
+        due.computeIfAbsent(day(e.getKey()), d -> new ArrayList<>()).add(e.getValue());
+      } else {
+        dropped++;
+        it.remove();
+      }
+    }
+    if (!due.isEmpty() || dropped > 0)
+      logger.info("SEGMENTDEFERRALS, weeks before {}: episode days due: {}, dropped: {}", end,
+              due.values().stream().mapToInt(List::size).sum(), dropped);
+    return due;
+  }
+
+  /**
+   * Atomically replace the deferral file.
+   *
+   * @throws IOException If writing fails
+   */
+  public synchronized void save() throws IOException {
+    final Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+      out.writeInt(MAGIC);
+      out.writeInt(this.entries.size());
+      for (final Map.Entry<String, ViewImpression> e : this.entries.entrySet()) {
+        final ViewImpression imp = e.getValue();
+        out.writeLong(day(e.getKey()).toEpochDay());
+        out.writeUTF(imp.getOrgaId());
+        out.writeUTF(imp.getEventId());
+        out.writeBoolean(imp.getSeriesId() != null);
+        if (imp.getSeriesId() != null)
+          out.writeUTF(imp.getSeriesId());
+        out.writeInt(imp.getPlays());
+        out.writeInt(imp.getVisitors());
+        out.writeInt(imp.getFinishes());
+        out.writeInt(imp.getSubtables().size());
+        for (final String subtable : imp.getSubtables())
+          out.writeUTF(subtable);
+      }
+    }
+    Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String key(final LocalDate day, final String orgaId, final String eventId) {
+    return day + "\u0000" + orgaId + '\u0000' + eventId;
+  }
+
+  private static LocalDate day(final String key) {
+    return LocalDate.parse(key.substring(0, key.indexOf('\u0000')));
+  }
+
+  private static String weekKey(final String key, final ViewImpression imp) {
+    return day(key).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)) + "\u0000" + imp.getOrgaId()
+            + '\u0000' + imp.getEventId();
+  }
+}
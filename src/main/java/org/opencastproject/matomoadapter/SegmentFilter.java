@@ -0,0 +1,144 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Persisted Bloom filter of the (organization, episode) pairs, which have a point in segments_daily. If the
+ * filter doesn't contain a pair, the episode definitely has no segment statistics yet and the InfluxDB read
+ * before the write can be skipped. False positives only cost the query, which would have been done anyway.
+ * <p>
+ * Pairs are added as soon as their segments are merged, before the InfluxDB write. If that write fails, the
+ * filter errs on the safe side.
+ */
+public final class SegmentFilter {
+  private static final double FALSE_POSITIVE_RATE = 0.01;
+  private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(StandardCharsets.UTF_8);
+
+  private final Path path;
+  private final int expectedInsertions;
+  private final boolean loaded;
+  private BloomFilter<CharSequence> filter;
+
+  private SegmentFilter(final Path path, final int expectedInsertions, final BloomFilter<CharSequence> filter,
+                        final boolean loaded) {
+    this.path = path;
+    this.expectedInsertions = expectedInsertions;
+    this.filter = filter;
+    this.loaded = loaded;
+  }
+
+  /**
+   * Load the filter from disk, or create an empty one if the file doesn't exist yet.
+   *
+   * @param path Filter file
+   * @param expectedInsertions Number of episodes the filter is sized for, used for new filters
+   * @return The filter
+   * @throws IOException If the file exists but can't be read
+   */
+  public static SegmentFilter open(final Path path, final int expectedInsertions) throws IOException {
+    if (Files.exists(path)) {
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+        return new SegmentFilter(path, expectedInsertions, BloomFilter.readFrom(in, FUNNEL), true);
+      }
+    }
+    return new SegmentFilter(path, expectedInsertions, create(expectedInsertions), false);
+  }
+
+  /**
+   * @return True, if the filter was read from disk. Otherwise it needs to be seeded from InfluxDB.
+   */
+  public boolean isLoaded() {
+    return this.loaded;
+  }
+
+  /**
+   * @param orgaId Organization
+   * @param eventId Episode
+   * @return False, if the episode definitely has no segments_daily point
+   */
+  public boolean mightContain(final String orgaId, final String eventId) {
+    return this.filter.mightContain(key(orgaId, eventId));
+  }
+
+  /**
+   * Record that an episode has a segments_daily point. Safe to call from several threads.
+   *
+   * @param orgaId Organization
+   * @param eventId Episode
+   */
+  public void put(final String orgaId, final String eventId) {
+    this.filter.put(key(orgaId, eventId));
+  }
+
+  /**
+   * Drop all pairs, e.g. before seeding the filter from InfluxDB.
+   */
+  public void clear() {
+    this.filter = create(this.expectedInsertions);
+  }
+
+  /**
+   * @return Estimated number of pairs, to spot a filter that is too small for the archive
+   */
+  public long approximateSize() {
+    return this.filter.approximateElementCount();
+  }
+
+  public int getExpectedInsertions() {
+    return this.expectedInsertions;
+  }
+
+  /**
+   * Write the filter to a temporary file and atomically replace the old one.
+   *
+   * @throws IOException If writing fails
+   */
+  public void save() throws IOException {
+    final Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+      this.filter.writeTo(out);
+    }
+    Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static BloomFilter<CharSequence> create(final int expectedInsertions) {
+    return BloomFilter.create(FUNNEL, Math.max(1, expectedInsertions), FALSE_POSITIVE_RATE);
+  }
+
+  private static String key(final String orgaId, final String eventId) {
+    return (orgaId != null ? orgaId : "") + '\u0000' + eventId;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.opencastproject.matomoadapter;
+
+import org.opencastproject.matomoadapter.influxdbclient.ViewImpression;
+
+import org.slf4j.Logger;
+
+import java.time.LocalDate;
+import java.util.PriorityQueue;
+
+/**
+ * Decides, for which episodes of a day segment statistics are requested. Episodes with a single play add
+ * almost nothing to the segment totals, but make up the long tail of Matomo requests. An episode is skipped,
+ * if it has less than the minimum plays, or if it isn't among the day's top episodes by plays. Without any
+ * limit, all episodes are fetched.
+ * <p>
+ * Each day's decisions are counted and reported, including the share of plays, whose segments were fetched.
+ */
+public final class SegmentPolicy {
+  private final int minPlays;
+  private final int top;
+
+  /**
+   * @param minPlays Minimum plays of an episode on a day, 0 for no minimum
+   * @param top Number of episodes with the most plays fetched per day, 0 for no limit
+   */
+  public SegmentPolicy(final int minPlays, final int top) {
+    this.minPlays = minPlays;
+    this.top = top;
+  }
+
+  /**
+   * @return Minimum plays of an episode, 0 for no minimum
+   */
+  public int getMinPlays() { return this.minPlays; }
+
+  /**
+   * Start the decisions for a day.
+   *
+   * @param impressions The day's united impressions, read once if the top episodes are limited
+   * @param ranked True, if the top episodes are limited for this fetch. On a resync, only changed episodes
+   *               are fetched, so only the minimum applies
+   * @return Decisions of the day
+   */
+  public Day day(final Iterable<ViewImpression> impressions, final boolean ranked) {
+    int cutoff = this.minPlays;
+    if (ranked && this.top > 0) {
+      // The plays of the top episodes, the smallest first
+      final PriorityQueue<Integer> best = new PriorityQueue<>(this.top + 1);
+      for (final ViewImpression imp : impressions) {
+        if (imp.getPlays() < this.minPlays)
+          continue;
+        best.add(imp.getPlays());
+        if (best.size() > this.top)
+          best.poll();
+      }
+      // Episodes with as many plays as the last of the top ones are fetched as well
+      if (best.size() == this.top)
+        cutoff = Math.max(cutoff, best.peek());
+    }
+    return new Day(cutoff);
+  }
+
+  /**
+   * Decisions and counts of one day
+   */
+  public final class Day {
+    private final int cutoff;
+    private int fetched;
+    private int belowMinimum;
+    private int outsideTop;
+    private long fetchedPlays;
+    private long skippedPlays;
+
+    private Day(final int cutoff) {
+      this.cutoff = cutoff;
+    }
+
+    /**
+     * @param imp United impression of an episode
+     * @param merged True, if the episode's segments of the day are in its totals already. Only the difference
+     *               can be merged then, so they're always fetched
+     * @return True, if the episode's segments should be fetched
+     */
+    public boolean fetch(final ViewImpression imp, final boolean merged) {
+      if (merged || imp.getPlays() >= this.cutoff) {
+        this.fetched++;
+        this.fetchedPlays += imp.getPlays();
+        return true;
+      }
+      if (imp.getPlays() < SegmentPolicy.this.minPlays)
+        this.belowMinimum++;
+      else
+        this.outsideTop++;
+      this.skippedPlays += imp.getPlays();
+      return false;
+    }
+
+    /**
+     * @return Number of skipped episodes
+     */
+    public int skipped() {
+      return this.belowMinimum + this.outsideTop;
+    }
+
+    /**
+     * Log the day's counts, if any episode was skipped.
+     *
+     * @param logger Logger
+     * @param day Day of the decisions
+     * @param deferred True, if the skipped episodes were deferred instead of dropped
+     */
+    public void report(final Logger logger, final LocalDate day, final boolean deferred) {
+      if (skipped() == 0)
+        return;
+      final long plays = this.fetchedPlays + this.skippedPlays;
+      logger.info("SEGMENTPOLICY, {}: fetched: {}, {}: {} (below {} plays: {}, outside top {}: {}), "
+                      + "plays covered: {}%", day, this.fetched, deferred ? "deferred" : "skipped", skipped(),
+              SegmentPolicy.this.minPlays, this.belowMinimum, SegmentPolicy.this.top, this.outsideTop,
+              plays > 0 ? this.fetchedPlays * 100 / plays : 100);
+    }
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Embedded, log-structured store of the cumulative segment statistics per (organization, episode). It holds
+ * the same data as the segments_daily measurement, so merges can be done locally and InfluxDB only receives
+ * writes.
+ * <p>
+ * Records are appended to a single file, the latest record of a key wins. An in-memory index maps each key to
+ * the offset of its latest record, values are read back with positional reads. Updates are staged and only
+ * appended by <code>commit</code>, which is called after the matching InfluxDB write succeeded. The file is
+ * compacted once it contains more superseded than live records.
+ */
+public final class SegmentStore {
+  private static final int MAGIC = 0x4F434D53;
+  private static final int HEADER_SIZE = 4;
+
+  private final Path path;
+  private final Map<String, Long> index = new HashMap<>();
+  private final Map<String, Entry> staged = new HashMap<>();
+  private FileChannel channel;
+  private int superseded;
+
+  /**
+   * Cumulative segment statistics of one episode
+   */
+  public static final class Entry {
+    private final Instant time;
+    private final String segments;
+
+    public Entry(final Instant time, final String segments) {
+      this.time = time;
+      this.segments = segments;
+    }
+
+    /**
+     * @return Timestamp of the segments_daily point, needed to overwrite it
+     */
+    public Instant getTime() { return this.time; }
+
+    public String getSegments() { return this.segments; }
+  }
+
+  private SegmentStore(final Path path) {
+    this.path = path;
+  }
+
+  /**
+   * Open or create the store and load its index.
+   *
+   * @param path Store file
+   * @return The opened store
+   * @throws IOException If the file is not a segment store or can't be read
+   */
+  public static SegmentStore open(final Path path) throws IOException {
+    final SegmentStore store = new SegmentStore(path);
+    store.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    if (store.channel.size() == 0) {
+      store.writeHeader();
+    } else {
+      store.loadIndex();
+    }
+    return store;
+  }
+
+  /**
+   * @return True, if the store holds no episodes yet and should be seeded from InfluxDB
+   */
+  public synchronized boolean isEmpty() {
+    return this.index.isEmpty() && this.staged.isEmpty();
+  }
+
+  /**
+   * Look up the cumulative statistics of an episode, including updates staged but not committed yet.
+   *
+   * @param orgaId Organization
+   * @param eventId Episode
+   * @return The entry, or null if the episode has no segment statistics yet
+   */
+  public synchronized Entry get(final String orgaId, final String eventId) {
+    final String key = key(orgaId, eventId);
+    final Entry pending = this.staged.get(key);
+    if (pending != null)
+      return pending;
+    final Long offset = this.index.get(key);
+    if (offset == null)
+      return null;
+    try {
+      return readRecord(offset).entry;
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Stage new cumulative statistics of an episode. They become visible to <code>get</code> immediately, but are
+   * only persisted by <code>commit</code>.
+   *
+   * @param orgaId Organization
+   * @param eventId Episode
+   * @param entry New cumulative statistics
+   */
+  public synchronized void stage(final String orgaId, final String eventId, final Entry entry) {
+    this.staged.put(key(orgaId, eventId), entry);
+  }
+
+  /**
+   * Drop staged updates, e.g. because writing them to InfluxDB failed.
+   */
+  public synchronized void rollback() {
+    this.staged.clear();
+  }
+
+  /**
+   * Append all staged updates and flush them to disk.
+   *
+   * @throws IOException If writing fails
+   */
+  public synchronized void commit() throws IOException {
+    if (this.staged.isEmpty())
+      return;
+    for (final Map.Entry<String, Entry> e : this.staged.entrySet())
+      append(e.getKey(), e.getValue());
+    this.staged.clear();
+    this.channel.force(false);
+    if (this.superseded > this.index.size())
+      compact();
+  }
+
+  /**
+   * Remove all episodes, e.g. before seeding the store from InfluxDB.
+   *
+   * @throws IOException If writing fails
+   */
+  public synchronized void clear() throws IOException {
+    this.staged.clear();
+    this.index.clear();
+    this.superseded = 0;
+    this.channel.truncate(0L);
+    writeHeader();
+    this.channel.force(false);
+  }
+
+  /**
+   * Write statistics of an episode directly, without staging. Used for seeding, call <code>flush</code> after
+   * the last one.
+   *
+   * @param orgaId Organization
+   * @param eventId Episode
+   * @param entry Cumulative statistics
+   * @throws IOException If writing fails
+   */
+  public synchronized void put(final String orgaId, final String eventId, final Entry entry) throws IOException {
+    append(key(orgaId, eventId), entry);
+  }
+
+  /**
+   * Force all written records to disk.
+   *
+   * @throws IOException If writing fails
+   */
+  public synchronized void flush() throws IOException {
+    this.channel.force(false);
+  }
+
+  public synchronized int size() {
+    return this.index.size();
+  }
+
+  public synchronized void close() throws IOException {
+    this.channel.close();
+  }
+
+  private static String key(final String orgaId, final String eventId) {
+    return orgaId + '\u0000' + eventId;
+  }
+
+  private void writeHeader() throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC);
+    header.flip();
+    this.channel.write(header, 0L);
+  }
+
+  /**
+   * Record layout: key length, key bytes, epoch seconds, value length, value bytes.
+   */
+  private void append(final String key, final Entry entry) throws IOException {
+    final byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    final byte[] v = entry.segments.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer record = ByteBuffer.allocate(4 + k.length + 8 + 4 + v.length);
+    record.putInt(k.length).put(k).putLong(entry.time.getEpochSecond()).putInt(v.length).put(v);
+    record.flip();
+    final long offset = this.channel.size();
+    while (record.hasRemaining())
+      this.channel.write(record, offset + record.position());
+    if (this.index.put(key, offset) != null)
+      this.superseded++;
+  }
+
+  private void loadIndex() throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    this.channel.read(header, 0L);
+    header.flip();
+    if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+      throw new IOException("Not a segment store: " + this.path);
+    long offset = HEADER_SIZE;
+    final long end = this.channel.size();
+    while (offset < end) {
+      final Record r;
+      try {
+        r = readRecord(offset);
+      } catch (final IOException e) {
+        // A torn record at the end stems from a crash during commit, the InfluxDB write was done before.
+        // Truncate it, the affected episodes get merged again on the next run.
+        this.channel.truncate(offset);
+        break;
+      }
+      if (this.index.put(r.key, offset) != null)
+        this.superseded++;
+      offset += r.length;
+    }
+  }
+
+  /**
+   * Rewrite all live records into a new file and atomically replace the old one.
+   */
+  private void compact() throws IOException {
+    final Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+    final Map<String, Entry> live = new HashMap<>();
+    for (final Map.Entry<String, Long> e : this.index.entrySet())
+      live.put(e.getKey(), readRecord(e.getValue()).entry);
+    final FileChannel old = this.channel;
+    this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.index.clear();
+    this.superseded = 0;
+    writeHeader();
+    for (final Map.Entry<String, Entry> e : live.entrySet())
+      append(e.getKey(), e.getValue());
+    this.channel.force(false);
+    old.close();
+    Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private Record readRecord(final long offset) throws IOException {
+    final ByteBuffer len = ByteBuffer.allocate(4);
+    readFully(len, offset);
+    final int keyLength = len.getInt();
+    checkLength(keyLength + 12L, offset + 4);
+    final ByteBuffer head = ByteBuffer.allocate(keyLength + 12);
+    readFully(head, offset + 4);
+    final byte[] k = new byte[keyLength];
+    head.get(k);
+    final long seconds = head.getLong();
+    final int valueLength = head.getInt();
+    checkLength(valueLength, offset + 4 + keyLength + 12);
+    final ByteBuffer value = ByteBuffer.allocate(valueLength);
+    readFully(value, offset + 4 + keyLength + 12);
+    return new Record(new String(k, StandardCharsets.UTF_8),
+            new Entry(Instant.ofEpochSecond(seconds), new String(value.array(), StandardCharsets.UTF_8)),
+            4 + keyLength + 12 + valueLength);
+  }
+
+  /**
+   * Validate a length field before allocating a buffer for it, so a torn record can't cause huge allocations.
+   */
+  private void checkLength(final long length, final long offset) throws IOException {
+    if (length < 0 || offset + length > this.channel.size())
+      throw new IOException("Truncated record at offset " + offset);
+  }
+
+  private void readFully(final ByteBuffer buf, final long offset) throws IOException {
+    if (offset + buf.capacity() > this.channel.size())
+      throw new IOException("Truncated record at offset " + offset);
+    while (buf.hasRemaining()) {
+      if (this.channel.read(buf, offset + buf.position()) < 0)
+        throw new IOException("Unexpected end of store at offset " + offset);
+    }
+    buf.flip();
+  }
+
+  /**
+   * Decoded record with its length in the file
+   */
+  private static final class Record {
+    private final String key;
+    private final Entry entry;
+    private final int length;
+
+    Record(final String key, final Entry entry, final int length) {
+      this.key = key;
+      this.entry = entry;
+      this.length = length;
+    }
+  }
+}
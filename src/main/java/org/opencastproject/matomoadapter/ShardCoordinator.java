@@ -0,0 +1,158 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+
+package org.opencastproject.matomoadapter;
+
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+
+/**
+ * Splits the episodes of a site between several adapter instances. Each instance owns the episodes whose
+ * eventId hashes to its shard, and writes only their views and segments.
+ * <p>
+ * The instances share a directory, e.g. on a network file system. After finishing a day, each shard records it
+ * in its checkpoint file. Under an exclusive lock on the directory, the shard then checks the checkpoints of
+ * all shards: days every shard has finished are finalized exactly once, by whichever shard comes last. The
+ * directory also records the number of shards, so instances with a different count are refused.
+ */
+public final class ShardCoordinator {
+  private static final String LOCK = "shards.lock";
+  private static final String COUNT = "shards";
+  private static final String FINALIZED = "finalized";
+
+  private final Path dir;
+  private final int index;
+  private final int count;
+
+  /**
+   * Work done once for a day all shards have finished
+   */
+  public interface DayAction {
+    void run(LocalDate day) throws IOException;
+  }
+
+  private ShardCoordinator(final Path dir, final int index, final int count) {
+    this.dir = dir;
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * @param dir Directory shared by all shards, created if missing
+   * @param index This instance's shard, from 0
+   * @param count Number of shards
+   * @return The coordinator
+   * @throws IOException If the directory can't be set up, or was set up for another number of shards
+   */
+  public static ShardCoordinator open(final Path dir, final int index, final int count) throws IOException {
+    Files.createDirectories(dir);
+    final ShardCoordinator shards = new ShardCoordinator(dir, index, count);
+    try (FileChannel channel = shards.lockFile()) {
+      final FileLock lock = channel.lock();
+      try {
+        final Path file = dir.resolve(COUNT);
+        if (!Files.exists(file)) {
+          write(file, Integer.toString(count));
+        } else if (!Files.readString(file).trim().equals(Integer.toString(count))) {
+          throw new IOException("Shard directory " + dir + " is set up for " + Files.readString(file).trim()
+                  + " shards, not " + count);
+        }
+      } finally {
+        lock.release();
+      }
+    }
+    return shards;
+  }
+
+  /**
+   * @param eventId Episode
+   * @return True, if the episode belongs to this shard
+   */
+  public boolean owns(final String eventId) {
+    return Math.floorMod(Hashing.murmur3_32().hashString(eventId, StandardCharsets.UTF_8).asInt(), this.count)
+            == this.index;
+  }
+
+  public int getIndex() { return this.index; }
+
+  public int getCount() { return this.count; }
+
+  /**
+   * Record a day as finished by this shard. Then finalize every day, which all shards have finished and which
+   * isn't finalized yet, oldest first. The directory stays locked meanwhile, so no day is finalized twice.
+   *
+   * @param day Day this shard finished
+   * @param finalizer Work to do once per day, after all shards finished it
+   * @throws IOException If the shard files can't be read or written, or the finalizer fails
+   */
+  public void finish(final LocalDate day, final DayAction finalizer) throws IOException {
+    try (FileChannel channel = lockFile()) {
+      final FileLock lock = channel.lock();
+      try {
+        write(checkpoint(this.index), day.toString());
+        LocalDate complete = null;
+        for (int i = 0; i < this.count; i++) {
+          final LocalDate finished = readDate(checkpoint(i));
+          if (finished == null)
+            return;
+          if (complete == null || finished.isBefore(complete))
+            complete = finished;
+        }
+        final LocalDate finalized = readDate(this.dir.resolve(FINALIZED));
+        for (LocalDate d = finalized != null ? finalized.plusDays(1) : complete; !d.isAfter(complete);
+             d = d.plusDays(1)) {
+          finalizer.run(d);
+          write(this.dir.resolve(FINALIZED), d.toString());
+        }
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  private FileChannel lockFile() throws IOException {
+    return FileChannel.open(this.dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+  }
+
+  private Path checkpoint(final int shard) {
+    return this.dir.resolve("shard-" + shard + ".checkpoint");
+  }
+
+  private static LocalDate readDate(final Path file) throws IOException {
+    return Files.exists(file) ? LocalDate.parse(Files.readString(file).trim()) : null;
+  }
+
+  private static void write(final Path file, final String content) throws IOException {
+    final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.writeString(tmp, content);
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
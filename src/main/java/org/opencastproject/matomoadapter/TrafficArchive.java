@@ -0,0 +1,245 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * HTTP interceptor, which records all Matomo and Opencast responses of a run into an archive file, or serves
+ * them back from it. Replaying runs the whole pipeline on real-world data without any network traffic, either
+ * at full speed or with the recorded latencies.
+ * <p>
+ * The archive is a gzip stream of a header and records. The header holds the start of the recording and the
+ * content of the date file at that time, a replay starts from both. Each record holds request key, status code,
+ * content type, latency and body. Requests are identified by method and URL, without credentials. If the same
+ * request was recorded more than once, the responses are replayed in recorded order, the last one repeatedly.
+ */
+public final class TrafficArchive implements Interceptor {
+  // "OCT2", archives without header were "OCTA"
+  private static final int MAGIC = 0x4F435432;
+  private static final String TOKEN = "token_auth";
+
+  /**
+   * Whether to record or to replay
+   */
+  public enum Mode { RECORD, REPLAY }
+
+  private final Mode mode;
+  private final boolean latencies;
+  private final Instant start;
+  private final String dateFile;
+  private final DataOutputStream out;
+  private final Map<String, ArrayDeque<Entry>> recorded;
+
+  /**
+   * One recorded response
+   */
+  private static final class Entry {
+    private final int code;
+    private final String contentType;
+    private final long latencyNanos;
+    private final byte[] body;
+
+    Entry(final int code, final String contentType, final long latencyNanos, final byte[] body) {
+      this.code = code;
+      this.contentType = contentType;
+      this.latencyNanos = latencyNanos;
+      this.body = body;
+    }
+  }
+
+  private TrafficArchive(final Mode mode, final boolean latencies, final Instant start, final String dateFile,
+                         final DataOutputStream out, final Map<String, ArrayDeque<Entry>> recorded) {
+    this.mode = mode;
+    this.latencies = latencies;
+    this.start = start;
+    this.dateFile = dateFile;
+    this.out = out;
+    this.recorded = recorded;
+  }
+
+  /**
+   * Create a new archive, replacing an existing file.
+   *
+   * @param path Archive file
+   * @param start Start of the recording
+   * @param dateFile Content of the date file at the start, empty if there's no date yet
+   * @return Recording interceptor
+   * @throws IOException If the file can't be created
+   */
+  public static TrafficArchive record(final Path path, final Instant start, final String dateFile)
+          throws IOException {
+    // Sync flush after every record, so the archive is readable even if the adapter is killed
+    final DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(path)), true));
+    out.writeInt(MAGIC);
+    out.writeLong(start.toEpochMilli());
+    out.writeUTF(dateFile);
+    out.flush();
+    return new TrafficArchive(Mode.RECORD, false, start, dateFile, out, null);
+  }
+
+  /**
+   * Load an archive for replay.
+   *
+   * @param path Archive file
+   * @param latencies True, if each response should be delayed by its recorded latency
+   * @return Replaying interceptor
+   * @throws IOException If the file can't be read
+   */
+  public static TrafficArchive replay(final Path path, final boolean latencies) throws IOException {
+    final Map<String, ArrayDeque<Entry>> recorded = new HashMap<>();
+    Instant start = null;
+    String dateFile = null;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(path))))) {
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not a traffic archive: " + path);
+      start = Instant.ofEpochMilli(in.readLong());
+      dateFile = in.readUTF();
+      while (true) {
+        final String key;
+        try {
+          key = in.readUTF();
+        } catch (final EOFException e) {
+          break;
+        }
+        final int code = in.readInt();
+        final String contentType = in.readUTF();
+        final long latency = in.readLong();
+        final byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        recorded.computeIfAbsent(key, k -> new ArrayDeque<>())
+                .add(new Entry(code, contentType, latency, body));
+      }
+    } catch (final EOFException e) {
+      // Archive of a killed recording, the last record is incomplete
+    }
+    if (dateFile == null)
+      throw new IOException("Incomplete traffic archive: " + path);
+    return new TrafficArchive(Mode.REPLAY, latencies, start, dateFile, null, recorded);
+  }
+
+  public Mode getMode() { return this.mode; }
+
+  /**
+   * @return Start of the recording
+   */
+  public Instant getStart() { return this.start; }
+
+  /**
+   * @return Content of the date file at the start of the recording, empty if there was no date yet
+   */
+  public String getDateFile() { return this.dateFile; }
+
+  @Override
+  public Response intercept(final Chain chain) throws IOException {
+    final Request request = chain.request();
+    final String key = request.method() + ' ' + withoutToken(request.url());
+    return this.mode == Mode.REPLAY ? replay(request, key) : record(chain, key);
+  }
+
+  /**
+   * Close the archive, if recording.
+   *
+   * @throws IOException If the archive can't be finished
+   */
+  public void close() throws IOException {
+    if (this.out != null) {
+      synchronized (this.out) {
+        this.out.close();
+      }
+    }
+  }
+
+  private Response record(final Chain chain, final String key) throws IOException {
+    final long start = System.nanoTime();
+    final Response response = chain.proceed(chain.request());
+    final ResponseBody body = response.body();
+    final MediaType type = body != null ? body.contentType() : null;
+    final byte[] bytes = body != null ? body.bytes() : new byte[0];
+    final long latency = System.nanoTime() - start;
+    synchronized (this.out) {
+      this.out.writeUTF(key);
+      this.out.writeInt(response.code());
+      this.out.writeUTF(type != null ? type.toString() : "");
+      this.out.writeLong(latency);
+      this.out.writeInt(bytes.length);
+      this.out.write(bytes);
+      this.out.flush();
+    }
+    return response.newBuilder().body(ResponseBody.create(type, bytes)).build();
+  }
+
+  private Response replay(final Request request, final String key) throws IOException {
+    final Entry entry;
+    synchronized (this.recorded) {
+      final ArrayDeque<Entry> responses = this.recorded.get(key);
+      if (responses == null)
+        throw new IOException("No recorded response for " + key);
+      entry = responses.size() > 1 ? responses.poll() : responses.peek();
+    }
+    if (this.latencies) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(entry.latencyNanos);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while replaying " + key);
+      }
+    }
+    return new Response.Builder()
+            .request(request)
+            .protocol(Protocol.HTTP_1_1)
+            .code(entry.code)
+            .message("Replayed")
+            .body(ResponseBody.create(entry.contentType.isEmpty() ? null : MediaType.parse(entry.contentType),
+                    entry.body))
+            .build();
+  }
+
+  private static String withoutToken(final HttpUrl url) {
+    return url.queryParameter(TOKEN) != null ? url.newBuilder().removeAllQueryParameters(TOKEN).build().toString()
+            : url.toString();
+  }
+}
@@ -22,18 +22,17 @@
 package org.opencastproject.matomoadapter;
 
 import org.opencastproject.matomoadapter.influxdbclient.InfluxDBProcessor;
+import org.opencastproject.matomoadapter.influxdbclient.SegmentCodec;
 import org.opencastproject.matomoadapter.influxdbclient.SegmentsImpression;
 import org.opencastproject.matomoadapter.influxdbclient.SegmentsPOJO;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 
-import org.influxdb.dto.Point;
-
+import java.io.IOException;
 import java.text.DecimalFormat;
-import java.time.Instant;
-import java.util.List;
+import java.util.Map;
 
 import io.reactivex.Flowable;
 import io.reactivex.annotations.NonNull;
@@ -51,7 +50,7 @@ public final class Utils {
    * greater of both.
    *
    * @param old Old JSONArray with segment data
-   * @param json New JSON string containing segment data
+   * @param json New segment data, as JSON string or compact encoded, see <code>SegmentCodec</code>
    * @return Unified JSONArray with updated values
    */
   @NonNull
@@ -59,31 +58,7 @@ public final class Utils {
     // If the new json array is empty, just return the unchanged JSONArray object
     if (json.length() > 2) {
       try {
-        final JsonArray newJson = new Gson().fromJson(json, JsonArray.class);
-        // If the old JSONArray is empty, just return the new JSONArray from string json
-        if (old.size() == 0)
-          return newJson;
-        // The longer JSONArray is always stored
-        final JsonArray longer = old.size() > newJson.size() ? old : newJson;
-        final JsonArray shorter = old.size() > newJson.size() ? newJson : old;
-        final DecimalFormat df = new DecimalFormat("#.##");
-        // The sum doesn't change
-        final int sum = old.get(0).getAsJsonObject().get("sum_plays").getAsInt() +
-                newJson.get(0).getAsJsonObject().get("sum_plays").getAsInt();
-        // Update values for segments
-        for (int i = 0; i < longer.size(); i++) {
-          // If the shorter arrays length is reached, add 0
-          final int playsShort = i < shorter.size() ?
-                  old.get(i).getAsJsonObject().get("nb_plays").getAsInt() : 0;
-          final int plays = longer.get(i).getAsJsonObject().get("nb_plays").getAsInt() + playsShort;
-          final double rate = (double) plays / (double) sum;
-
-          // Update JSONObject with new values
-          longer.get(i).getAsJsonObject().addProperty("nb_plays", String.valueOf(plays));
-          longer.get(i).getAsJsonObject().addProperty("sum_plays", String.valueOf(sum));
-          longer.get(i).getAsJsonObject().addProperty("play_rate", Double.parseDouble(df.format(rate)));
-        }
-        return longer;
+        return combineSegmentJson(old, SegmentCodec.decode(json));
       } catch (final JsonSyntaxException e) {
         throw new ParsingJsonSyntaxException(json);
       }
@@ -92,17 +67,101 @@ public final class Utils {
   }
 
   /**
-   * Checks, if an entry of segments for an episode already exists in InfluxDB. If it does,
-   * the entry is overwritten, otherwise, an InfluxDB point is created from Segments
-   * object.
+   * Combines two JSONArrays containing segment data, see <code>combineSegmentJson(JsonArray, String)</code>.
+   *
+   * @param old Old JSONArray with segment data
+   * @param newJson New JSONArray with segment data
+   * @return Unified JSONArray with updated values. Neither argument is modified, but an empty one may be
+   *         returned as is
+   */
+  @NonNull
+  public static JsonArray combineSegmentJson(final JsonArray old, @NonNull final JsonArray newJson) {
+    if (newJson.size() == 0)
+      return old;
+    // If the old JSONArray is empty, just return the new JSONArray
+    if (old.size() == 0)
+      return newJson;
+    // The longer JSONArray is always stored, a copy of it is updated
+    final JsonArray longer = (old.size() > newJson.size() ? old : newJson).deepCopy();
+    final JsonArray shorter = old.size() > newJson.size() ? newJson : old;
+    final DecimalFormat df = new DecimalFormat("#.##");
+    // The sum doesn't change
+    final int sum = old.get(0).getAsJsonObject().get("sum_plays").getAsInt() +
+            newJson.get(0).getAsJsonObject().get("sum_plays").getAsInt();
+    // Update values for segments
+    for (int i = 0; i < longer.size(); i++) {
+      // If the shorter arrays length is reached, add 0
+      final int playsShort = i < shorter.size() ?
+              shorter.get(i).getAsJsonObject().get("nb_plays").getAsInt() : 0;
+      final int plays = longer.get(i).getAsJsonObject().get("nb_plays").getAsInt() + playsShort;
+      final double rate = (double) plays / (double) sum;
+
+      // Update JSONObject with new values
+      longer.get(i).getAsJsonObject().addProperty("nb_plays", String.valueOf(plays));
+      longer.get(i).getAsJsonObject().addProperty("sum_plays", String.valueOf(sum));
+      longer.get(i).getAsJsonObject().addProperty("play_rate", Double.parseDouble(df.format(rate)));
+    }
+    return longer;
+  }
+
+  /**
+   * Computes the correction between two reports of segment data for the same episode and day, e.g. after
+   * Matomo re-archived the day. Combining the result with the episode's totals via
+   * <code>combineSegmentJson</code> replaces the old day's contribution with the new one.
+   *
+   * @param now Segment data as reported now
+   * @param before Segment data as reported before, may be null
+   * @return Segments with the differences of nb_plays and sum_plays, or an empty array if nothing changed
+   */
+  @NonNull
+  public static JsonArray diffSegmentJson(final JsonArray now, final String before) {
+    final JsonArray old;
+    try {
+      old = before != null ? SegmentCodec.decode(before) : new JsonArray();
+    } catch (final JsonSyntaxException e) {
+      throw new ParsingJsonSyntaxException(before);
+    }
+    final int length = Math.max(now.size(), old.size());
+    final int sum = sumPlays(now) - sumPlays(old);
+    final JsonArray diff = new JsonArray();
+    boolean changed = sum != 0;
+    for (int i = 0; i < length; i++) {
+      final int playsNow = i < now.size() ? now.get(i).getAsJsonObject().get("nb_plays").getAsInt() : 0;
+      final int playsOld = i < old.size() ? old.get(i).getAsJsonObject().get("nb_plays").getAsInt() : 0;
+      changed |= playsNow != playsOld;
+      final JsonObject segment = (i < now.size() ? now : old).get(i).getAsJsonObject().deepCopy();
+      segment.addProperty("nb_plays", String.valueOf(playsNow - playsOld));
+      segment.addProperty("sum_plays", String.valueOf(sum));
+      diff.add(segment);
+    }
+    return changed ? diff : new JsonArray();
+  }
+
+  private static int sumPlays(final JsonArray segments) {
+    return segments.size() > 0 ? segments.get(0).getAsJsonObject().get("sum_plays").getAsInt() : 0;
+  }
+
+  /**
+   * Checks, if an entry of segments for an episode already exists. If it does, the entry is
+   * overwritten, otherwise, a new point is written for the SegmentsImpression.
    * Update and delete are not natively supported on point basis by InfluxDB. Therefore, existing
    * points are overwritten.
+   * If a local segment store is given, the existing entry is taken from there. The caller stages the
+   * merged result once it's in the batch. Otherwise, InfluxDB is queried for the existing entry, unless the segment
+   * filter rules out that one exists.
    *
    * @param seg Segments objects generated from Matomo request
    * @param influxPro InfluxDB processor, which handles influxDB operations
-   * @return Point from Segments
+   * @param store Local segment store, may be null
+   * @param filter Filter of episodes with segment statistics, may be null
+   * @param compact True, if the merged segments should be written and stored compact encoded
+   * @return SegmentsImpression to write, possibly merged with the stored one
    */
-  public static Flowable<Point> checkSegments(final SegmentsImpression seg, final InfluxDBProcessor influxPro) {
+  public static Flowable<SegmentsImpression> checkSegments(final SegmentsImpression seg,
+                                                           final InfluxDBProcessor influxPro,
+                                                           final SegmentStore store,
+                                                           final SegmentFilter filter,
+                                                           final boolean compact) {
 
     final JsonArray segJson = seg.getSegments();
     // If the given SegmentsImpression doesnt contain segment data, evict item from stream
@@ -111,23 +170,84 @@ public final class Utils {
 
     final String eventId = seg.getEventId();
     final String orgaId = seg.getOrgaId();
+
+    if (store != null) {
+      final SegmentStore.Entry existing = store.get(orgaId, eventId);
+      return Flowable.just((existing == null ? seg : new SegmentsImpression(eventId, orgaId,
+              Utils.combineSegmentJson(segJson, existing.getSegments()), existing.getTime()))
+              .withCompactEncoding(compact));
+    }
+
+    if (filter != null) {
+      // Definitely no point in InfluxDB yet, so there's nothing to merge with
+      final boolean known = filter.mightContain(orgaId, eventId);
+      filter.put(orgaId, eventId);
+      if (!known)
+        return Flowable.just(seg.withCompactEncoding(compact));
+    }
+
     // Prepare a query string for InfluxDB, leave two placeholders for DB and RP
     final String queryString = "SELECT * FROM %s.%s.segments_daily WHERE eventId='" + eventId + "' AND "
             + "organizationId='" + orgaId + "'";
-    final List<SegmentsPOJO> segPojoList = influxPro.mapPojo(queryString, SegmentsPOJO.class);
+    // Only the oldest point of the episode is needed, taking it cancels the rest of the query
+    return influxPro.query(queryString, SegmentsPOJO.MAPPING)
+            .take(1)
+            // Unification of old segments data from DB and new data.
+            // In order to overwrite an entry, the new point needs to have the same timestamp and tags.
+            // Implication: "new" updates will always be written with the oldest timestamp of the episode.
+            .map(old -> new SegmentsImpression(eventId, orgaId, Utils.combineSegmentJson(segJson, readSegments(old)),
+                    old.getTime()))
+            // If no point in InfluxDB exists yet, write the SegmentsImpression as it is
+            .defaultIfEmpty(seg)
+            .map(result -> result.withCompactEncoding(compact));
+  }
 
-    // If an entry of segments for this episode exists
-    if (!segPojoList.isEmpty()) {
-      // Unification of old segments data from DB and new data
-      final JsonArray combo = Utils.combineSegmentJson(segJson, segPojoList.get(0).getSegments());
+  private static JsonArray readSegments(final SegmentsPOJO point) {
+    try {
+      return point.getSegmentArray();
+    } catch (final JsonSyntaxException e) {
+      throw new ParsingJsonSyntaxException(point.getSegments());
+    }
+  }
 
-      // In order to overwrite an entry, the new point needs to have the same timestamp and tags.
-      // Implication: "new" updates will always be written with the oldest timestamp of the episode.
-      final Instant date = segPojoList.get(0).getTime();
+  /**
+   * Seed or repair the local segment store with all segments_daily points from InfluxDB. If an episode has
+   * more than one point, the oldest one is kept, since updates are always written with the oldest timestamp.
+   *
+   * @param store Local segment store, cleared first
+   * @param influxPro InfluxDB processor, which handles influxDB operations
+   * @throws IOException If writing the store fails
+   */
+  public static void rebuildSegmentStore(final SegmentStore store, final InfluxDBProcessor influxPro)
+          throws IOException {
+    store.clear();
+    // Streamed, so the whole measurement is never held in memory
+    final Iterable<SegmentsPOJO> points = influxPro.query("SELECT * FROM %s.%s.segments_daily", SegmentsPOJO.MAPPING)
+            .blockingIterable();
+    for (final SegmentsPOJO point : points) {
+      if (store.get(point.getOrganizationId(), point.getEventId()) == null) {
+        store.put(point.getOrganizationId(), point.getEventId(),
+                new SegmentStore.Entry(point.getTime(), point.getSegments()));
+      }
+    }
+    store.flush();
+  }
 
-      return Flowable.just(new SegmentsImpression(seg.getEventId(), seg.getOrgaId(), combo, date).toPoint());
+  /**
+   * Seed the segment filter with all episodes, which have a series in segments_daily.
+   *
+   * @param filter Segment filter, cleared first
+   * @param influxPro InfluxDB processor, which handles influxDB operations
+   * @throws IOException If saving the filter fails
+   */
+  public static void rebuildSegmentFilter(final SegmentFilter filter, final InfluxDBProcessor influxPro)
+          throws IOException {
+    filter.clear();
+    for (final Map<String, String> tags : influxPro.showSeriesTags("segments_daily")) {
+      final String eventId = tags.get("eventId");
+      if (eventId != null)
+        filter.put(tags.getOrDefault("organizationId", ""), eventId);
     }
-    // If no point in InfluxDB exists yet, return new point from SegmentsImpression
-    return Flowable.just(seg.toPoint());
+    filter.save();
   }
 }
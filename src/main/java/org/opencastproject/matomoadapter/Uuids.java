@@ -0,0 +1,104 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter;
+
+/**
+ * Converts between the 36 character String form of an eventId and two longs, without creating
+ * <code>java.util.UUID</code> objects.
+ */
+public final class Uuids {
+  private static final int LENGTH = 36;
+  private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+  private Uuids() {
+  }
+
+  /**
+   * Check, if the String is a canonical UUID (8-4-4-4-12 hex digits).
+   *
+   * @param s String to check
+   * @return True, if both halves can be parsed
+   */
+  public static boolean isUuid(final String s) {
+    if (s == null || s.length() != LENGTH)
+      return false;
+    for (int i = 0; i < LENGTH; i++) {
+      final char c = s.charAt(i);
+      if (i == 8 || i == 13 || i == 18 || i == 23) {
+        if (c != '-')
+          return false;
+      } else if (Character.digit(c, 16) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param s Canonical UUID, see <code>isUuid</code>
+   * @return The upper 64 bits
+   */
+  public static long high(final String s) {
+    return parse(s, 0, 18);
+  }
+
+  /**
+   * @param s Canonical UUID, see <code>isUuid</code>
+   * @return The lower 64 bits
+   */
+  public static long low(final String s) {
+    return parse(s, 19, LENGTH);
+  }
+
+  /**
+   * Format both halves as canonical lower case UUID.
+   *
+   * @param high Upper 64 bits
+   * @param low Lower 64 bits
+   * @return The UUID String
+   */
+  public static String format(final long high, final long low) {
+    final char[] out = new char[LENGTH];
+    int pos = 0;
+    for (int nibble = 15; nibble >= 0; nibble--) {
+      if (pos == 8 || pos == 13)
+        out[pos++] = '-';
+      out[pos++] = DIGITS[(int) (high >>> (nibble * 4)) & 0xF];
+    }
+    for (int nibble = 15; nibble >= 0; nibble--) {
+      if (pos == 18 || pos == 23)
+        out[pos++] = '-';
+      out[pos++] = DIGITS[(int) (low >>> (nibble * 4)) & 0xF];
+    }
+    return new String(out);
+  }
+
+  private static long parse(final String s, final int from, final int to) {
+    long value = 0L;
+    for (int i = from; i < to; i++) {
+      final char c = s.charAt(i);
+      if (c != '-')
+        value = value << 4 | Character.digit(c, 16);
+    }
+    return value;
+  }
+}
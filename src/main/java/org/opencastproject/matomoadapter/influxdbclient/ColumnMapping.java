@@ -0,0 +1,51 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter.influxdbclient;
+
+import java.util.List;
+
+/**
+ * Maps the rows of a query result to objects, without reflection. The column indices are resolved once per
+ * series header by <code>bind</code>, mapping a row is then plain index access.
+ */
+@FunctionalInterface
+public interface ColumnMapping<T> {
+  /**
+   * Resolve the column indices for a series header.
+   *
+   * @param columns Column names of the series, e.g. time and the selected tags and fields
+   * @return Mapper for the rows of this series
+   */
+  RowMapper<T> bind(List<String> columns);
+
+  /**
+   * Maps a single row with precomputed column indices
+   */
+  @FunctionalInterface
+  interface RowMapper<T> {
+    /**
+     * @param row Values of one row, in column order
+     * @return The mapped object
+     */
+    T map(List<Object> row);
+  }
+}
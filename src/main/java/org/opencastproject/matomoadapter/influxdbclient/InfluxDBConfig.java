@@ -31,6 +31,8 @@ public final class InfluxDBConfig {
   private final String db;
   private final String retentionPolicy;
   private final String logLevel;
+  private final boolean gzip;
+  private final int chunkSize;
 
   public InfluxDBConfig(
           final String host,
@@ -38,13 +40,17 @@ public final class InfluxDBConfig {
           final String password,
           final String db,
           final String retentionPolicy,
-          final String logLevel) {
+          final String logLevel,
+          final boolean gzip,
+          final int chunkSize) {
     this.host = host;
     this.user = user;
     this.password = password;
     this.db = db;
     this.retentionPolicy = retentionPolicy;
     this.logLevel = logLevel;
+    this.gzip = gzip;
+    this.chunkSize = chunkSize;
   }
 
   String getHost() {
@@ -68,4 +74,8 @@ public final class InfluxDBConfig {
   String getLogLevel() {
     return this.logLevel;
   }
+
+  boolean isGzip() { return this.gzip; }
+
+  int getChunkSize() { return this.chunkSize; }
 }
@@ -24,76 +24,330 @@ package org.opencastproject.matomoadapter.influxdbclient;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
 import org.influxdb.InfluxDBIOException;
-import org.influxdb.dto.BatchPoints;
-import org.influxdb.dto.Point;
 import org.influxdb.dto.Pong;
 import org.influxdb.dto.Query;
-import org.influxdb.impl.InfluxDBMapper;
+import org.influxdb.dto.QueryResult;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
+import okhttp3.Credentials;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
 
 /**
- * Handles all processes relevant to InfluxDB
+ * Handles all processes relevant to InfluxDB. Queries go through the influxdb-java client, while points are
+ * encoded straight into line protocol and POSTed to the /write endpoint.
  */
 public final class InfluxDBProcessor {
+  private static final MediaType LINE_PROTOCOL = MediaType.get("text/plain; charset=utf-8");
+  // Highest number of concurrent requests of a phase, the segment lookups of a regular day
+  private static final int MAX_QUERIES = Flowable.bufferSize();
+
   private final org.slf4j.Logger logger;
 
-  private BatchPoints batch;
+  private LineProtocolEncoder batch;
   private final InfluxDBConfig config;
   private final InfluxDB influxDB;
+  private final OkHttpClient httpClient;
+  private final HttpUrl writeUrl;
+  private final PointDigests digests;
+  private final boolean pingOnWrite;
+  private int unchanged;
 
   public InfluxDBProcessor(final InfluxDBConfig config, final org.slf4j.Logger logger) {
+    this(config, logger, null);
+  }
+
+  /**
+   * @param config InfluxDB configuration
+   * @param logger Logger
+   * @param digests Digests of written points, unchanged points are skipped. May be null
+   */
+  public InfluxDBProcessor(final InfluxDBConfig config, final org.slf4j.Logger logger, final PointDigests digests) {
+    this(config, logger, digests, true);
+  }
+
+  /**
+   * @param config InfluxDB configuration
+   * @param logger Logger
+   * @param digests Digests of written points, unchanged points are skipped. May be null
+   * @param pingOnWrite True, if InfluxDB should be pinged before each batch. Otherwise, the health is checked
+   *                    by calling <code>checkHealth</code> off the write path
+   */
+  public InfluxDBProcessor(final InfluxDBConfig config, final org.slf4j.Logger logger, final PointDigests digests,
+                           final boolean pingOnWrite) {
     this.logger = logger;
+    this.digests = digests;
+    this.pingOnWrite = pingOnWrite;
     this.influxDB = connect(config);
     this.config = config;
-    this.batch = BatchPoints.database(config.getDb()).retentionPolicy(config.getRetentionPolicy()).build();
+    this.batch = new LineProtocolEncoder();
+    this.httpClient = new OkHttpClient();
+    final HttpUrl.Builder url = HttpUrl.get(config.getHost()).newBuilder()
+            .addPathSegment("write")
+            .addQueryParameter("db", config.getDb())
+            .addQueryParameter("precision", "s");
+    if (config.getRetentionPolicy() != null)
+      url.addQueryParameter("rp", config.getRetentionPolicy());
+    this.writeUrl = url.build();
   }
 
   /**
-   * Query InfluxDB and map the result to a given POJO (plain old Java object). Each point returned one POJO.
+   * Query InfluxDB with a chunked response and stream the mapped rows. Chunks are parsed while the
+   * stream is consumed, at most a few chunks are buffered, so large results are read with constant memory.
+   * Cancelling the stream, e.g. with <code>take</code>, cancels the query.
    *
    * @param query Requested DB query, must contain two placeholders for database and retention policy information
-   * @param clazz POJO class which must be mapped to
-   * @return List of objects mapped from query result
+   * @param mapping Mapping of the result columns to objects
+   * @return Mapped rows, in result order
    */
-  public <T> List<T> mapPojo(final String query, final Class<T> clazz) {
+  public <T> Flowable<T> query(final String query, final ColumnMapping<T> mapping) {
     final String rp = this.config.getRetentionPolicy() != null ? this.config.getRetentionPolicy() : "\"\"";
-    final String q = String.format(query, this.config.getDb(), rp);
-    final InfluxDBMapper mapper = new InfluxDBMapper(this.influxDB);
-    return mapper.query(new Query(q, this.config.getDb()), clazz);
+    final Query q = new Query(String.format(query, this.config.getDb(), rp), this.config.getDb());
+    return Flowable.generate(() -> {
+      final ChunkStream<T> stream = new ChunkStream<>(mapping);
+      this.influxDB.query(q, this.config.getChunkSize(), stream::onChunk, stream::onComplete, stream::onFailure);
+      return stream;
+    }, (stream, emitter) -> {
+        stream.next(emitter);
+      }, ChunkStream::cancel);
+  }
+
+  /**
+   * Run a statement, which writes its result back into InfluxDB, like <code>SELECT ... INTO</code>.
+   *
+   * @param statement Statement, <code>%1$s</code> and <code>%2$s</code> are replaced by database and retention
+   *                  policy. Without a configured retention policy, <code>%1$s.%2$s.m</code> becomes <code>db..m</code>,
+   *                  which InfluxDB resolves to the default policy in both FROM and INTO clauses
+   * @return Number of points written
+   */
+  public long selectInto(final String statement) {
+    final String rp = this.config.getRetentionPolicy() != null ? this.config.getRetentionPolicy() : "";
+    final QueryResult result = this.influxDB.query(new Query(String.format(statement, this.config.getDb(), rp),
+            this.config.getDb()));
+    if (result.hasError())
+      throw new InfluxDBIOException(new IOException(result.getError()));
+    long written = 0;
+    for (final QueryResult.Result r : result.getResults()) {
+      if (r.hasError())
+        throw new InfluxDBIOException(new IOException(r.getError()));
+      if (r.getSeries() == null)
+        continue;
+      for (final QueryResult.Series series : r.getSeries()) {
+        final int column = series.getColumns().indexOf("written");
+        for (final List<Object> row : series.getValues())
+          written += ((Number) row.get(column)).longValue();
+      }
+    }
+    return written;
+  }
+
+  /**
+   * List the tag sets of all series of a measurement. Cheaper than selecting all points, since only the
+   * series index is read.
+   *
+   * @param measurement Measurement name
+   * @return One map of tag keys to values per series
+   */
+  public List<Map<String, String>> showSeriesTags(final String measurement) {
+    final QueryResult result = this.influxDB.query(new Query("SHOW SERIES FROM \"" + measurement + "\"",
+            this.config.getDb()));
+    if (result.hasError())
+      throw new InfluxDBIOException(new IOException(result.getError()));
+    final List<Map<String, String>> tags = new ArrayList<>();
+    for (final QueryResult.Result r : result.getResults()) {
+      if (r.hasError())
+        throw new InfluxDBIOException(new IOException(r.getError()));
+      if (r.getSeries() == null)
+        continue;
+      for (final QueryResult.Series series : r.getSeries()) {
+        for (final List<Object> row : series.getValues())
+          tags.add(parseSeriesKey(String.valueOf(row.get(0))));
+      }
+    }
+    return tags;
+  }
+
+  /**
+   * Split a series key like <code>measurement,tag1=v1,tag2=v2</code> into its tags, honoring
+   * backslash escapes.
+   */
+  private static Map<String, String> parseSeriesKey(final String key) {
+    final Map<String, String> tags = new HashMap<>();
+    final StringBuilder token = new StringBuilder();
+    String tagKey = null;
+    boolean measurement = true;
+    int i = 0;
+    while (i <= key.length()) {
+      final char c = i < key.length() ? key.charAt(i) : ',';
+      if (c == '\\' && i + 1 < key.length()) {
+        token.append(key.charAt(i + 1));
+        i += 2;
+        continue;
+      }
+      if (c == ',') {
+        if (!measurement && tagKey != null)
+          tags.put(tagKey, token.toString());
+        measurement = false;
+        tagKey = null;
+        token.setLength(0);
+      } else if (c == '=' && !measurement && tagKey == null) {
+        tagKey = token.toString();
+        token.setLength(0);
+      } else {
+        token.append(c);
+      }
+      i++;
+    }
+    return tags;
   }
 
   /**
-   * Add a point to the batch.
+   * Encode a point into the batch. If the identical point was written before, it's dropped again.
    *
-   * @param p Point, that needs to be added to the batch.
+   * @param p Impression, that needs to be added to the batch.
    */
-  public void addToBatch(final Point p) {
-    this.batch.point(p);
+  public void addToBatch(final LineProtocolPoint p) {
+    p.writeTo(this.batch);
+    if (this.digests == null)
+      return;
+    final long key = this.batch.seriesDigest();
+    final long content = this.batch.contentDigest();
+    if (this.digests.isUnchanged(key, content)) {
+      this.batch.dropLast();
+      this.unchanged++;
+    } else {
+      this.digests.stage(key, content);
+    }
   }
 
   /**
    * Push the whole batch to InfluxDB and reset it afterwards.
+   *
+   * @throws IOException If saving the point digests fails
+   */
+  public void writeBatch() throws IOException {
+    if (this.pingOnWrite)
+      checkHealth();
+
+    if (this.digests != null && this.unchanged > 0)
+      this.logger.info("INFLUXWRITE, unchanged points skipped: {}", this.unchanged);
+    this.unchanged = 0;
+    try {
+      if (this.batch.points() > 0)
+        post(this.batch);
+    } catch (final InfluxDBIOException e) {
+      if (this.digests != null)
+        this.digests.rollback();
+      throw e;
+    } finally {
+      this.batch.reset();
+    }
+    if (this.digests != null)
+      this.digests.commit();
+  }
+
+  /**
+   * Ping InfluxDB and log an error if it isn't healthy.
+   *
+   * @return True, if InfluxDB answered the ping
    */
-  public void writeBatch() {
+  public boolean checkHealth() {
     try {
       final Pong pong = this.influxDB.ping();
       if (!pong.isGood()) {
         this.logger.error("INFLUXPINGERROR, not good");
+        return false;
       }
+      return true;
     } catch (final InfluxDBIOException e) {
       this.logger.error("INFLUXPINGERROR, {}", e.getMessage());
+      return false;
     }
-
-    this.influxDB.write(this.batch);
-    resetBatch();
   }
 
   /**
-   * Reset the batch object.
+   * POST encoded points to the /write endpoint. If enabled, the body is gzip compressed first.
+   *
+   * @param encoder Encoder holding the points
    */
-  private void resetBatch() {
-    this.batch = BatchPoints.database(this.config.getDb()).retentionPolicy(this.config.getRetentionPolicy()).build();
+  private void post(final LineProtocolEncoder encoder) {
+    final long start = System.nanoTime();
+    final RequestBody body;
+    final long sent;
+    try {
+      if (this.config.isGzip()) {
+        final Buffer compressed = new Buffer();
+        try (BufferedSink gzip = Okio.buffer(new GzipSink(compressed))) {
+          encoder.writeTo(gzip);
+        }
+        sent = compressed.size();
+        body = RequestBody.create(LINE_PROTOCOL, compressed.readByteString());
+      } else {
+        sent = encoder.size();
+        body = new RequestBody() {
+          @Override
+          public MediaType contentType() {
+            return LINE_PROTOCOL;
+          }
+
+          @Override
+          public long contentLength() {
+            return encoder.size();
+          }
+
+          @Override
+          public void writeTo(final BufferedSink sink) throws IOException {
+            encoder.writeTo(sink);
+          }
+        };
+      }
+    } catch (final IOException e) {
+      throw new InfluxDBIOException(e);
+    }
+    final long encoded = System.nanoTime();
+
+    final Request.Builder request = new Request.Builder().url(this.writeUrl).post(body);
+    if (this.config.isGzip())
+      request.header("Content-Encoding", "gzip");
+    if (this.config.getUser() != null)
+      request.header("Authorization", Credentials.basic(this.config.getUser(),
+              this.config.getPassword() != null ? this.config.getPassword() : ""));
+
+    try (Response response = this.httpClient.newCall(request.build()).execute()) {
+      if (!response.isSuccessful()) {
+        final ResponseBody error = response.body();
+        throw new InfluxDBIOException(new IOException("write failed, code: " + response.code() + ", "
+                + (error != null ? error.string() : "")));
+      }
+    } catch (final IOException e) {
+      throw new InfluxDBIOException(e);
+    }
+    final long end = System.nanoTime();
+    // Payload and latency report, compare runs with influxdb.gzip on and off
+    this.logger.info("INFLUXWRITE, points: {}, payload: {} bytes, sent: {} bytes ({}%), gzip: {}, compress: {}ms, "
+                    + "write: {}ms", encoder.points(), encoder.size(), sent,
+            encoder.size() > 0 ? sent * 100 / encoder.size() : 100, this.config.isGzip(),
+            TimeUnit.NANOSECONDS.toMillis(encoded - start), TimeUnit.NANOSECONDS.toMillis(end - encoded));
   }
 
   /**
@@ -101,6 +355,8 @@ public final class InfluxDBProcessor {
    */
   public void closeConnection() {
     this.influxDB.close();
+    this.httpClient.dispatcher().executorService().shutdown();
+    this.httpClient.connectionPool().evictAll();
     this.batch = null;
   }
 
@@ -113,12 +369,21 @@ public final class InfluxDBProcessor {
   private static InfluxDB connect(final InfluxDBConfig config) {
     InfluxDB influxDB = null;
     try {
-      influxDB = InfluxDBFactory.connect(config.getHost(), config.getUser(), config.getPassword());
+      // Chunked queries run on OkHttp's dispatcher, and each holds a slot until its consumer took the last
+      // chunk. The default limit of 5 requests per host would cap the concurrent segment lookups at 5.
+      final Dispatcher dispatcher = new Dispatcher();
+      dispatcher.setMaxRequests(MAX_QUERIES);
+      dispatcher.setMaxRequestsPerHost(MAX_QUERIES);
+      influxDB = InfluxDBFactory.connect(config.getHost(), config.getUser(), config.getPassword(),
+              new OkHttpClient.Builder().dispatcher(dispatcher));
 
       influxDB.setDatabase(config.getDb());
+      // Compresses requests of the influxdb-java client. Query responses are requested with
+      // "Accept-Encoding: gzip" and decompressed transparently by OkHttp in any case.
+      if (config.isGzip())
+        influxDB.enableGzip();
       if (config.getRetentionPolicy() != null)
         influxDB.setRetentionPolicy(config.getRetentionPolicy());
-      influxDB.enableBatch();
       if (config.getLogLevel().equals("debug")) {
         influxDB.setLogLevel(InfluxDB.LogLevel.FULL);
       } else {
@@ -132,4 +397,115 @@ public final class InfluxDBProcessor {
       throw e;
     }
   }
+
+  /**
+   * State of a streamed query. The chunk callbacks run on an OkHttp dispatcher thread and block, while the
+   * queue of parsed chunks is full. The dispatcher allows as many queries as the adapter runs at once, so a
+   * blocked query doesn't hold back the others. Rows are handed out one by one on the consuming thread.
+   */
+  private static final class ChunkStream<T> {
+    private static final int BUFFERED_CHUNKS = 4;
+    private static final long OFFER_TIMEOUT_MS = 100L;
+    private static final Object DONE = new Object();
+    private static final String DONE_ERROR = "DONE";
+
+    private final ColumnMapping<T> mapping;
+    private final BlockingQueue<Object> chunks = new ArrayBlockingQueue<>(BUFFERED_CHUNKS);
+    private volatile InfluxDB.Cancellable cancellable;
+    private volatile boolean cancelled;
+
+    private List<List<Object>> rows;
+    private int row;
+    private ColumnMapping.RowMapper<T> mapper;
+    private List<String> columns;
+    private List<QueryResult.Series> series;
+    private int seriesIndex;
+
+    ChunkStream(final ColumnMapping<T> mapping) {
+      this.mapping = mapping;
+    }
+
+    void onChunk(final InfluxDB.Cancellable c, final QueryResult chunk) {
+      this.cancellable = c;
+      enqueue(chunk);
+    }
+
+    void onComplete() {
+      enqueue(DONE);
+    }
+
+    void onFailure(final Throwable t) {
+      enqueue(t);
+    }
+
+    private void enqueue(final Object item) {
+      try {
+        while (!this.cancelled && !this.chunks.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          // Consumer is slower than the response, wait
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * Emit the next row, taking the next series or chunk when the current one is exhausted.
+     */
+    void next(final Emitter<T> emitter) throws InterruptedException {
+      while (this.rows == null || this.row >= this.rows.size()) {
+        if (this.series != null && this.seriesIndex < this.series.size()) {
+          final QueryResult.Series s = this.series.get(this.seriesIndex++);
+          // Chunks of the same series repeat the header, only rebind if the columns changed
+          if (!s.getColumns().equals(this.columns)) {
+            this.columns = s.getColumns();
+            this.mapper = this.mapping.bind(this.columns);
+          }
+          this.rows = s.getValues();
+          this.row = 0;
+          continue;
+        }
+        final Object item = this.chunks.take();
+        if (item == DONE) {
+          emitter.onComplete();
+          return;
+        }
+        if (item instanceof Throwable) {
+          emitter.onError(new InfluxDBIOException(new IOException((Throwable) item)));
+          return;
+        }
+        final QueryResult chunk = (QueryResult) item;
+        // influxdb-java signals the end of the response with a "DONE" error, I/O errors are passed as chunk error
+        if (DONE_ERROR.equals(chunk.getError())) {
+          emitter.onComplete();
+          return;
+        }
+        if (chunk.hasError()) {
+          emitter.onError(new InfluxDBIOException(new IOException(chunk.getError())));
+          return;
+        }
+        this.series = new ArrayList<>();
+        if (chunk.getResults() != null) {
+          for (final QueryResult.Result r : chunk.getResults()) {
+            if (r.hasError()) {
+              emitter.onError(new InfluxDBIOException(new IOException(r.getError())));
+              return;
+            }
+            if (r.getSeries() != null)
+              this.series.addAll(r.getSeries());
+          }
+        }
+        this.seriesIndex = 0;
+        this.rows = null;
+      }
+      emitter.onNext(this.mapper.map(this.rows.get(this.row++)));
+    }
+
+    void cancel() {
+      this.cancelled = true;
+      final InfluxDB.Cancellable c = this.cancellable;
+      if (c != null)
+        c.cancel();
+      this.chunks.clear();
+    }
+  }
 }
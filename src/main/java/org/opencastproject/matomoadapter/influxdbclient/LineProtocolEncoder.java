@@ -0,0 +1,277 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter.influxdbclient;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import okio.BufferedSink;
+
+/**
+ * Encodes points directly into a reusable byte buffer in InfluxDB line protocol:
+ * <pre>measurement,tag1=v1,tag2=v2 field1=1i,field2="s" timestamp</pre>
+ * Measurement names and tag/field keys are passed pre-encoded (see <code>key</code>), only values are
+ * escaped and encoded per point. Tags must be added sorted by key, as InfluxDB recommends.
+ */
+public final class LineProtocolEncoder {
+  private static final int INITIAL_SIZE = 64 * 1024;
+  // Stable across JVMs, since digests are persisted
+  private static final HashFunction DIGEST = Hashing.farmHashFingerprint64();
+
+  private byte[] buf = new byte[INITIAL_SIZE];
+  private int size;
+  private int points;
+  private boolean firstField;
+  // Offsets of the last point: line start, first field, timestamp
+  private int lineStart;
+  private int fieldsStart;
+  private int timestampStart;
+
+  /**
+   * Pre-encode a measurement name, tag or field key, with the escaping needed for keys applied.
+   *
+   * @param name Name to encode
+   * @return UTF-8 bytes to pass to the encoder
+   */
+  public static byte[] key(final String name) {
+    final StringBuilder sb = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      if (c == ',' || c == '=' || c == ' ')
+        sb.append('\\');
+      sb.append(c);
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Start a new point.
+   *
+   * @param measurement Pre-encoded measurement name
+   * @return This encoder
+   */
+  public LineProtocolEncoder measurement(final byte[] measurement) {
+    this.lineStart = this.size;
+    append(measurement);
+    this.firstField = true;
+    return this;
+  }
+
+  /**
+   * Add a tag. Empty values are skipped, as InfluxDB rejects them.
+   *
+   * @param key Pre-encoded tag key
+   * @param value Tag value
+   * @return This encoder
+   */
+  public LineProtocolEncoder tag(final byte[] key, final String value) {
+    if (value == null || value.isEmpty())
+      return this;
+    put((byte) ',');
+    append(key);
+    put((byte) '=');
+    int i = 0;
+    while (i < value.length()) {
+      final char c = value.charAt(i);
+      if (c == ',' || c == '=' || c == ' ')
+        put((byte) '\\');
+      i += putChar(value, i);
+    }
+    return this;
+  }
+
+  /**
+   * Add an integer field.
+   *
+   * @param key Pre-encoded field key
+   * @param value Field value
+   * @return This encoder
+   */
+  public LineProtocolEncoder field(final byte[] key, final long value) {
+    fieldKey(key);
+    putLong(value);
+    put((byte) 'i');
+    return this;
+  }
+
+  /**
+   * Add a String field.
+   *
+   * @param key Pre-encoded field key
+   * @param value Field value
+   * @return This encoder
+   */
+  public LineProtocolEncoder field(final byte[] key, final String value) {
+    fieldKey(key);
+    put((byte) '"');
+    int i = 0;
+    while (i < value.length()) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\')
+        put((byte) '\\');
+      i += putChar(value, i);
+    }
+    put((byte) '"');
+    return this;
+  }
+
+  /**
+   * Finish the point.
+   *
+   * @param epochSeconds Timestamp in seconds precision
+   */
+  public void end(final long epochSeconds) {
+    put((byte) ' ');
+    this.timestampStart = this.size;
+    putLong(epochSeconds);
+    put((byte) '\n');
+    this.points++;
+  }
+
+  /**
+   * @return Digest of measurement, tags and timestamp of the last point, which identify it in InfluxDB
+   */
+  public long seriesDigest() {
+    return DIGEST.newHasher()
+            .putBytes(this.buf, this.lineStart, this.fieldsStart - this.lineStart)
+            .putBytes(this.buf, this.timestampStart, this.size - this.timestampStart)
+            .hash().asLong();
+  }
+
+  /**
+   * @return Digest of the whole line of the last point
+   */
+  public long contentDigest() {
+    return DIGEST.hashBytes(this.buf, this.lineStart, this.size - this.lineStart).asLong();
+  }
+
+  /**
+   * Remove the last point from the batch again.
+   */
+  public void dropLast() {
+    this.size = this.lineStart;
+    this.points--;
+  }
+
+  /**
+   * Write all encoded points to a sink.
+   *
+   * @param sink Target, e.g. a HTTP request body
+   * @throws IOException If writing fails
+   */
+  public void writeTo(final BufferedSink sink) throws IOException {
+    sink.write(this.buf, 0, this.size);
+  }
+
+  /**
+   * Forget all points, but keep the buffer for the next batch.
+   */
+  public void reset() {
+    this.size = 0;
+    this.points = 0;
+  }
+
+  public int size() { return this.size; }
+
+  public int points() { return this.points; }
+
+  private void fieldKey(final byte[] key) {
+    if (this.firstField)
+      this.fieldsStart = this.size;
+    put(this.firstField ? (byte) ' ' : (byte) ',');
+    this.firstField = false;
+    append(key);
+    put((byte) '=');
+  }
+
+  private void putLong(final long value) {
+    if (value == Long.MIN_VALUE) {
+      append(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+      return;
+    }
+    long v = value;
+    if (v < 0) {
+      put((byte) '-');
+      v = -v;
+    }
+    ensure(20);
+    final int start = this.size;
+    do {
+      this.buf[this.size++] = (byte) ('0' + v % 10);
+      v /= 10;
+    } while (v != 0);
+    // Digits were written in reverse order
+    for (int i = start, j = this.size - 1; i < j; i++, j--) {
+      final byte t = this.buf[i];
+      this.buf[i] = this.buf[j];
+      this.buf[j] = t;
+    }
+  }
+
+  /**
+   * UTF-8 encode the character at index i, together with its low surrogate, if it starts a pair.
+   *
+   * @return Number of chars consumed
+   */
+  private int putChar(final String s, final int i) {
+    final char c = s.charAt(i);
+    ensure(4);
+    if (c < 0x80) {
+      this.buf[this.size++] = (byte) c;
+    } else if (c < 0x800) {
+      this.buf[this.size++] = (byte) (0xC0 | c >> 6);
+      this.buf[this.size++] = (byte) (0x80 | c & 0x3F);
+    } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+      final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+      this.buf[this.size++] = (byte) (0xF0 | cp >> 18);
+      this.buf[this.size++] = (byte) (0x80 | cp >> 12 & 0x3F);
+      this.buf[this.size++] = (byte) (0x80 | cp >> 6 & 0x3F);
+      this.buf[this.size++] = (byte) (0x80 | cp & 0x3F);
+      return 2;
+    } else {
+      this.buf[this.size++] = (byte) (0xE0 | c >> 12);
+      this.buf[this.size++] = (byte) (0x80 | c >> 6 & 0x3F);
+      this.buf[this.size++] = (byte) (0x80 | c & 0x3F);
+    }
+    return 1;
+  }
+
+  private void append(final byte[] bytes) {
+    ensure(bytes.length);
+    System.arraycopy(bytes, 0, this.buf, this.size, bytes.length);
+    this.size += bytes.length;
+  }
+
+  private void put(final byte b) {
+    ensure(1);
+    this.buf[this.size++] = b;
+  }
+
+  private void ensure(final int extra) {
+    if (this.size + extra > this.buf.length)
+      this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.size + extra));
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter.influxdbclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Persisted digests of recently written points. For each point, a 64 bit digest of measurement, tags and
+ * timestamp is mapped to a 64 bit digest of the whole line. A point whose line digest matches the stored one
+ * is already in InfluxDB and doesn't need to be written again.
+ * <p>
+ * Digests are kept in open-addressing arrays, the oldest entries are evicted first once the maximum size is
+ * reached. Like the segment store, digests of a batch are staged and only committed after the write succeeded.
+ */
+public final class PointDigests {
+  private static final int MAGIC = 0x4F434450;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final long EMPTY = 0L;
+
+  private final Path path;
+  private final int maxSize;
+
+  private long[] keys;
+  private long[] contents;
+  // Keys in insertion order, oldest at head once the ring is full
+  private long[] ring;
+  private int size;
+  private int head;
+
+  private long[] stagedKeys = new long[INITIAL_CAPACITY];
+  private long[] stagedContents = new long[INITIAL_CAPACITY];
+  private int staged;
+
+  private PointDigests(final Path path, final int maxSize) {
+    this.path = path;
+    this.maxSize = Math.max(1, maxSize);
+    allocate(Math.min(INITIAL_CAPACITY, capacityFor(this.maxSize)));
+    this.ring = new long[Math.min(INITIAL_CAPACITY, this.maxSize)];
+  }
+
+  /**
+   * Load the digests from disk, or start empty if the file doesn't exist yet.
+   *
+   * @param path Digest file
+   * @param maxSize Maximum number of points remembered
+   * @return The digests
+   * @throws IOException If the file exists but can't be read
+   */
+  public static PointDigests open(final Path path, final int maxSize) throws IOException {
+    final PointDigests digests = new PointDigests(path, maxSize);
+    if (Files.exists(path)) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+        if (in.readInt() != MAGIC)
+          throw new IOException("Not a point digest file: " + path);
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++)
+          digests.put(in.readLong(), in.readLong());
+      }
+    }
+    return digests;
+  }
+
+  /**
+   * @param key Digest of measurement, tags and timestamp
+   * @param content Digest of the whole line
+   * @return True, if the identical point was written before
+   */
+  synchronized boolean isUnchanged(final long key, final long content) {
+    final int slot = find(nonEmpty(key));
+    return slot >= 0 && this.contents[slot] == content;
+  }
+
+  /**
+   * Remember a point of the current batch, until <code>commit</code> or <code>rollback</code>.
+   */
+  synchronized void stage(final long key, final long content) {
+    if (this.staged == this.stagedKeys.length) {
+      this.stagedKeys = Arrays.copyOf(this.stagedKeys, this.staged * 2);
+      this.stagedContents = Arrays.copyOf(this.stagedContents, this.staged * 2);
+    }
+    this.stagedKeys[this.staged] = key;
+    this.stagedContents[this.staged] = content;
+    this.staged++;
+  }
+
+  /**
+   * Forget the staged points, because writing them failed.
+   */
+  synchronized void rollback() {
+    this.staged = 0;
+  }
+
+  /**
+   * Record the staged points as written and save all digests.
+   *
+   * @throws IOException If saving fails
+   */
+  synchronized void commit() throws IOException {
+    if (this.staged == 0)
+      return;
+    for (int i = 0; i < this.staged; i++)
+      put(this.stagedKeys[i], this.stagedContents[i]);
+    this.staged = 0;
+    save();
+  }
+
+  public synchronized int size() {
+    return this.size;
+  }
+
+  private void put(final long rawKey, final long content) {
+    final long key = nonEmpty(rawKey);
+    final int existing = find(key);
+    if (existing >= 0) {
+      this.contents[existing] = content;
+      return;
+    }
+    if (this.size == this.maxSize) {
+      // Evict the oldest point and reuse its ring position
+      remove(find(this.ring[this.head]));
+      this.ring[this.head] = key;
+      this.head = (this.head + 1) % this.maxSize;
+    } else {
+      if (this.size == this.ring.length)
+        this.ring = Arrays.copyOf(this.ring, Math.min(this.maxSize, this.ring.length * 2));
+      this.ring[this.size] = key;
+    }
+    if ((this.size + 1) * 4L > this.keys.length * 3L)
+      resize(this.keys.length * 2);
+    int slot = index(key);
+    while (this.keys[slot] != EMPTY)
+      slot = (slot + 1) & (this.keys.length - 1);
+    this.keys[slot] = key;
+    this.contents[slot] = content;
+    this.size++;
+  }
+
+  private void save() throws IOException {
+    final Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(this.size);
+      // Oldest first, so that loading evicts in the same order
+      for (int i = 0; i < this.size; i++) {
+        final long key = this.ring[(this.head + i) % this.size];
+        out.writeLong(key);
+        out.writeLong(this.contents[find(key)]);
+      }
+    }
+    Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private int find(final long key) {
+    final int mask = this.keys.length - 1;
+    int slot = index(key);
+    while (this.keys[slot] != EMPTY) {
+      if (this.keys[slot] == key)
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Remove a slot and shift following entries of the probe sequence back, see SeriesCache.
+   */
+  private void remove(final int slot) {
+    final int mask = this.keys.length - 1;
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (this.keys[next] != EMPTY) {
+      final int home = index(this.keys[next]);
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        this.keys[gap] = this.keys[next];
+        this.contents[gap] = this.contents[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    this.keys[gap] = EMPTY;
+    this.size--;
+  }
+
+  private void resize(final int capacity) {
+    final long[] oldKeys = this.keys;
+    final long[] oldContents = this.contents;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] == EMPTY)
+        continue;
+      int slot = index(oldKeys[i]);
+      while (this.keys[slot] != EMPTY)
+        slot = (slot + 1) & (capacity - 1);
+      this.keys[slot] = oldKeys[i];
+      this.contents[slot] = oldContents[i];
+    }
+  }
+
+  private void allocate(final int capacity) {
+    this.keys = new long[capacity];
+    this.contents = new long[capacity];
+  }
+
+  private int index(final long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (this.keys.length - 1);
+  }
+
+  private static long nonEmpty(final long key) {
+    return key == EMPTY ? 1L : key;
+  }
+
+  private static int capacityFor(final int entries) {
+    final long needed = Math.max(2L, entries * 4L / 3L + 1L);
+    return (int) Math.min(1L << 30, Long.highestOneBit(needed - 1) << 1);
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter.influxdbclient;
+
+import java.time.Instant;
+
+/**
+ * Daily view statistics summed up over all episodes of a series or an organization (immutable). Statistics
+ * providers query these rollups instead of summing up every episode point at query time.
+ */
+public final class RollupImpression implements LineProtocolPoint {
+  private static final byte[] TAG_SERIES = LineProtocolEncoder.key("seriesId");
+  private static final byte[] TAG_ORGANIZATION = LineProtocolEncoder.key("organizationId");
+  private static final byte[] FIELD_PLAYS = LineProtocolEncoder.key("plays");
+  private static final byte[] FIELD_VISITORS = LineProtocolEncoder.key("visitors");
+  private static final byte[] FIELD_FINISHES = LineProtocolEncoder.key("finishes");
+
+  /**
+   * What the statistics are summed up over
+   */
+  public enum Level {
+    SERIES("impressions_series_daily"),
+    ORGANIZATION("impressions_organization_daily");
+
+    private final byte[] measurement;
+
+    Level(final String measurement) {
+      this.measurement = LineProtocolEncoder.key(measurement);
+    }
+  }
+
+  private final Level level;
+  private final String orgaId;
+  private final String seriesId;
+  private final int plays;
+  private final int visitors;
+  private final int finishes;
+  private final Instant date;
+
+  public RollupImpression(
+          final Level level,
+          final String orgaId,
+          final String seriesId,
+          final int plays,
+          final int visitors,
+          final int finishes,
+          final Instant date) {
+    this.level = level;
+    this.orgaId = orgaId;
+    this.seriesId = seriesId;
+    this.plays = plays;
+    this.visitors = visitors;
+    this.finishes = finishes;
+    this.date = date;
+  }
+
+  /**
+   * Encode this rollup as InfluxDB point
+   * @param encoder Encoder of the current batch
+   */
+  @Override
+  public void writeTo(final LineProtocolEncoder encoder) {
+    // Tags in sorted key order, like all other points
+    encoder.measurement(this.level.measurement)
+            .tag(TAG_ORGANIZATION, this.orgaId);
+    if (this.level == Level.SERIES)
+      encoder.tag(TAG_SERIES, this.seriesId);
+    encoder.field(FIELD_PLAYS, this.plays)
+            .field(FIELD_VISITORS, this.visitors)
+            .field(FIELD_FINISHES, this.finishes)
+            .end(this.date.getEpochSecond());
+  }
+
+  public Level getLevel() { return this.level; }
+
+  public String getOrgaId() { return this.orgaId; }
+
+  public String getSeriesId() { return this.seriesId; }
+
+  public int getPlays() { return this.plays; }
+
+  public int getVisitors() { return this.visitors; }
+
+  public int getFinishes() { return this.finishes; }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter.influxdbclient;
+
+import com.google.gson.JsonArray;
+
+import java.time.Instant;
+
+/**
+ * Segment statistics of one episode on one day, resampled to a fixed number of buckets and written as one
+ * integer field per bucket (immutable). Unlike the JSON string in segments_daily, these fields can be summed up
+ * by InfluxDB over any time range, so no point has to be read back and merged.
+ * <p>
+ * Matomo splits a video into a number of segments depending on its length. Bucket b covers the same share
+ * of the video, [b / n, (b + 1) / n), and holds the plays passing through it, averaged over the segments it
+ * overlaps and rounded.
+ */
+public final class SegmentBucketsImpression implements LineProtocolPoint {
+  private static final byte[] MEASUREMENT = LineProtocolEncoder.key("segments_buckets_daily");
+  private static final byte[] TAG_EVENT = LineProtocolEncoder.key("eventId");
+  private static final byte[] TAG_ORGANIZATION = LineProtocolEncoder.key("organizationId");
+  private static final byte[] FIELD_PLAYS = LineProtocolEncoder.key("plays");
+
+  private final String eventId;
+  private final String orgaId;
+  private final int plays;
+  private final long[] buckets;
+  private final Layout layout;
+  private final Instant date;
+
+  /**
+   * Pre-encoded field keys <code>b0</code> to <code>b(n-1)</code> for a number of buckets
+   */
+  public static final class Layout {
+    private final byte[][] keys;
+
+    public Layout(final int buckets) {
+      this.keys = new byte[buckets][];
+      for (int b = 0; b < buckets; b++)
+        this.keys[b] = LineProtocolEncoder.key("b" + b);
+    }
+
+    public int size() { return this.keys.length; }
+  }
+
+  private SegmentBucketsImpression(final String eventId, final String orgaId, final int plays, final long[] buckets,
+                                   final Layout layout, final Instant date) {
+    this.eventId = eventId;
+    this.orgaId = orgaId;
+    this.plays = plays;
+    this.buckets = buckets;
+    this.layout = layout;
+    this.date = date;
+  }
+
+  /**
+   * Resample the segment statistics of one day.
+   *
+   * @param seg Segment statistics as reported by Matomo for the day, not merged with other days
+   * @param layout Number of buckets and their field keys
+   * @return Point with one field per bucket
+   */
+  public static SegmentBucketsImpression of(final SegmentsImpression seg, final Layout layout) {
+    final JsonArray segments = seg.getSegments();
+    final int n = segments.size();
+    final int size = layout.size();
+    final long[] buckets = new long[size];
+    if (n > 0) {
+      final double[] plays = new double[n];
+      for (int i = 0; i < n; i++)
+        plays[i] = segments.get(i).getAsJsonObject().get("nb_plays").getAsDouble();
+      // Work in units of 1 / (n * size), so segment and bucket boundaries are integers
+      for (int b = 0; b < size; b++) {
+        final long from = (long) b * n;
+        final long to = from + n;
+        double sum = 0;
+        for (int i = (int) (from / size); i < n && (long) i * size < to; i++) {
+          final long overlap = Math.min(to, (long) (i + 1) * size) - Math.max(from, (long) i * size);
+          sum += overlap * plays[i];
+        }
+        buckets[b] = Math.round(sum / n);
+      }
+    }
+    final int sumPlays = n > 0 ? segments.get(0).getAsJsonObject().get("sum_plays").getAsInt() : 0;
+    return new SegmentBucketsImpression(seg.getEventId(), seg.getOrgaId(), sumPlays, buckets, layout,
+            seg.getDate());
+  }
+
+  /**
+   * Encode this impression as InfluxDB point
+   * @param encoder Encoder of the current batch
+   */
+  @Override
+  public void writeTo(final LineProtocolEncoder encoder) {
+    encoder.measurement(MEASUREMENT)
+            .tag(TAG_EVENT, this.eventId)
+            .tag(TAG_ORGANIZATION, this.orgaId)
+            .field(FIELD_PLAYS, this.plays);
+    for (int b = 0; b < this.buckets.length; b++)
+      encoder.field(this.layout.keys[b], this.buckets[b]);
+    encoder.end(this.date.getEpochSecond());
+  }
+
+  public long[] getBuckets() { return this.buckets.clone(); }
+}
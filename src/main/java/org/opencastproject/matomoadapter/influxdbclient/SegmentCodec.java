@@ -0,0 +1,194 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter.influxdbclient;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Compact encoding of segment statistics. The JSON arrays Matomo returns repeat the key names label, nb_plays,
+ * sum_plays and play_rate for every segment. The compact form keeps only the numbers: the segment count,
+ * sum_plays, the labels and the differences between consecutive nb_plays, as zigzag varints in base64.
+ * play_rate is derived from nb_plays and sum_plays when decoding.
+ * <p>
+ * Encoded values start with the version marker <code>~1</code>, plain JSON values start with <code>[</code>, so
+ * both can be told apart and coexist in the same measurement.
+ */
+public final class SegmentCodec {
+  private static final String MARKER = "~1";
+  private static final int LABELS_NONE = 0;
+  private static final int LABELS_INTEGER = 1;
+  private static final int LABELS_STRING = 2;
+
+  private SegmentCodec() {
+  }
+
+  /**
+   * @param segments Segment statistics
+   * @return Compact encoding
+   */
+  public static String encode(final JsonArray segments) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(segments.size() * 2 + 8);
+    final int n = segments.size();
+    putVarint(out, n);
+    putVarint(out, zigzag(n > 0 ? intOf(segments.get(0).getAsJsonObject(), "sum_plays") : 0));
+    final int labels = labelMode(segments);
+    out.write(labels);
+    long previous = 0;
+    for (final JsonElement e : segments) {
+      final JsonObject segment = e.getAsJsonObject();
+      if (labels == LABELS_INTEGER) {
+        final long label = segment.get("label").getAsLong();
+        putVarint(out, zigzag(label - previous));
+        previous = label;
+      } else if (labels == LABELS_STRING) {
+        final JsonElement value = segment.get("label");
+        final byte[] label = (value != null && !value.isJsonNull() ? value.getAsString() : "")
+                .getBytes(StandardCharsets.UTF_8);
+        putVarint(out, label.length);
+        out.write(label, 0, label.length);
+      }
+    }
+    previous = 0;
+    for (final JsonElement e : segments) {
+      final long plays = intOf(e.getAsJsonObject(), "nb_plays");
+      putVarint(out, zigzag(plays - previous));
+      previous = plays;
+    }
+    return MARKER + Base64.getUrlEncoder().withoutPadding().encodeToString(out.toByteArray());
+  }
+
+  /**
+   * @param value Segment statistics, either compact or as JSON array
+   * @return Segment statistics as JSON array
+   * @throws JsonSyntaxException If the value is neither
+   */
+  public static JsonArray decode(final String value) {
+    if (!isCompact(value))
+      return new Gson().fromJson(value, JsonArray.class);
+    try {
+      final ByteBuffer bytes = ByteBuffer.wrap(Base64.getUrlDecoder().decode(value.substring(MARKER.length())));
+      final int n = (int) getVarint(bytes);
+      final long sum = unzigzag(getVarint(bytes));
+      final int labels = bytes.get();
+      final String[] names = new String[n];
+      long label = 0;
+      for (int i = 0; i < n; i++) {
+        if (labels == LABELS_INTEGER) {
+          label += unzigzag(getVarint(bytes));
+          names[i] = Long.toString(label);
+        } else if (labels == LABELS_STRING) {
+          final byte[] name = new byte[(int) getVarint(bytes)];
+          bytes.get(name);
+          names[i] = new String(name, StandardCharsets.UTF_8);
+        }
+      }
+      final JsonArray segments = new JsonArray(n);
+      long plays = 0;
+      for (int i = 0; i < n; i++) {
+        plays += unzigzag(getVarint(bytes));
+        final JsonObject segment = new JsonObject();
+        if (names[i] != null)
+          segment.addProperty("label", names[i]);
+        segment.addProperty("nb_plays", plays);
+        segment.addProperty("sum_plays", sum);
+        segment.addProperty("play_rate", sum != 0 ? Math.round(plays * 100.0 / sum) / 100.0 : 0.0);
+        segments.add(segment);
+      }
+      return segments;
+    } catch (final IllegalArgumentException | BufferUnderflowException e) {
+      throw new JsonSyntaxException("Malformed compact segments: " + value, e);
+    }
+  }
+
+  /**
+   * @param value Value of a segments field
+   * @return True, if the value is compact encoded
+   */
+  public static boolean isCompact(final String value) {
+    return value.startsWith(MARKER);
+  }
+
+  /**
+   * Labels are stored as delta coded integers, if all of them are integers without leading zeros. Otherwise
+   * they are stored as strings, missing ones as empty strings.
+   */
+  private static int labelMode(final JsonArray segments) {
+    int present = 0;
+    boolean integers = true;
+    for (final JsonElement e : segments) {
+      final JsonElement label = e.getAsJsonObject().get("label");
+      if (label == null || label.isJsonNull())
+        continue;
+      present++;
+      integers &= label.getAsString().matches("0|-?[1-9][0-9]{0,17}");
+    }
+    if (present == 0)
+      return LABELS_NONE;
+    return integers && present == segments.size() ? LABELS_INTEGER : LABELS_STRING;
+  }
+
+  private static long intOf(final JsonObject segment, final String key) {
+    final JsonElement value = segment.get(key);
+    return value != null && !value.isJsonNull() ? value.getAsLong() : 0;
+  }
+
+  private static long zigzag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void putVarint(final ByteArrayOutputStream out, final long value) {
+    long v = value;
+    while ((v & ~0x7FL) != 0) {
+      out.write((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.write((int) v);
+  }
+
+  private static long getVarint(final ByteBuffer bytes) {
+    long value = 0;
+    int shift = 0;
+    while (true) {
+      final byte b = bytes.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0)
+        return value;
+      shift += 7;
+      if (shift > 63)
+        throw new IllegalArgumentException("Varint too long");
+    }
+  }
+}
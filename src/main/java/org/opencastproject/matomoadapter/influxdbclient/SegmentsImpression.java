@@ -23,43 +23,64 @@ package org.opencastproject.matomoadapter.influxdbclient;
 
 import com.google.gson.JsonArray;
 
-import org.influxdb.dto.Point;
-
 import java.time.Instant;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Contains all necessary metadata regarding segments statistics to write to the InfluxDB (immutable).
  */
-public final class SegmentsImpression {
+public final class SegmentsImpression implements LineProtocolPoint {
+  private static final byte[] MEASUREMENT = LineProtocolEncoder.key("segments_daily");
+  private static final byte[] TAG_EVENT = LineProtocolEncoder.key("eventId");
+  private static final byte[] TAG_ORGANIZATION = LineProtocolEncoder.key("organizationId");
+  private static final byte[] FIELD_SEGMENTS = LineProtocolEncoder.key("segments");
+
   private final String eventId;
   private final String orgaId;
   private final JsonArray segments;
   private final Instant date;
+  private final boolean compact;
 
   public SegmentsImpression(
           final String eventId,
           final String orgaId,
           final JsonArray segments,
           final Instant date) {
+    this(eventId, orgaId, segments, date, false);
+  }
+
+  private SegmentsImpression(
+          final String eventId,
+          final String orgaId,
+          final JsonArray segments,
+          final Instant date,
+          final boolean compact) {
     this.eventId = eventId;
     this.orgaId = orgaId;
     this.segments = segments;
     this.date = date;
+    this.compact = compact;
+  }
+
+  /**
+   * @param compact True, if the segments field should be written with <code>SegmentCodec</code>
+   * @return This impression, written in the given encoding
+   */
+  public SegmentsImpression withCompactEncoding(final boolean compact) {
+    return compact == this.compact ? this
+            : new SegmentsImpression(this.eventId, this.orgaId, this.segments, this.date, compact);
   }
 
   /**
-   * Convert this impression into an InfluxDB point
-   * @return The InfluxDB point
+   * Encode this impression as InfluxDB point
+   * @param encoder Encoder of the current batch
    */
-  public Point toPoint() {
-    return Point
-            .measurement("segments_daily")
-            .time(this.date.getEpochSecond(), TimeUnit.SECONDS)
-            .addField("segments", this.segments.toString())
-            .tag("organizationId", this.orgaId)
-            .tag("eventId", this.eventId)
-            .build();
+  @Override
+  public void writeTo(final LineProtocolEncoder encoder) {
+    encoder.measurement(MEASUREMENT)
+            .tag(TAG_EVENT, this.eventId)
+            .tag(TAG_ORGANIZATION, this.orgaId)
+            .field(FIELD_SEGMENTS, getEncodedSegments())
+            .end(this.date.getEpochSecond());
   }
 
   public String getEventId() {
@@ -68,5 +89,14 @@ public final class SegmentsImpression {
 
   public JsonArray getSegments() { return this.segments; }
 
+  /**
+   * @return Value of the segments field, compact or as JSON array
+   */
+  public String getEncodedSegments() {
+    return this.compact ? SegmentCodec.encode(this.segments) : this.segments.toString();
+  }
+
   public String getOrgaId() { return this.orgaId; }
+
+  public Instant getDate() { return this.date; }
 }
@@ -21,33 +21,63 @@
 
 package org.opencastproject.matomoadapter.influxdbclient;
 
-import org.influxdb.annotation.Column;
-import org.influxdb.annotation.Measurement;
+import com.google.gson.JsonArray;
 
 import java.time.Instant;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 /**
- * Model class (POJO) for InfluxDB mapper. Measurement name can not be changed dynamically. If you wish to
- * store segments data under another measurement, change the following @Measurement annotation.
+ * Point of the segments_daily measurement, as read back from InfluxDB. Rows are mapped with precomputed
+ * column indices, see <code>MAPPING</code>.
  */
-@SuppressWarnings("InstanceVariableMayNotBeInitialized")
-@Measurement(name = "segments_daily", timeUnit = TimeUnit.SECONDS)
-public class SegmentsPOJO {
+public final class SegmentsPOJO {
 
-  @Column(name = "time")
-  private Instant time;
+  /**
+   * Maps rows of <code>SELECT * FROM segments_daily</code>
+   */
+  public static final ColumnMapping<SegmentsPOJO> MAPPING = columns -> {
+    final int time = columns.indexOf("time");
+    final int eventId = columns.indexOf("eventId");
+    final int organizationId = columns.indexOf("organizationId");
+    final int segments = columns.indexOf("segments");
+    return row -> new SegmentsPOJO(
+            time >= 0 && row.get(time) != null ? Instant.parse(row.get(time).toString()) : null,
+            stringAt(row, eventId),
+            stringAt(row, organizationId),
+            stringAt(row, segments));
+  };
 
-  @Column(name = "eventId", tag = true)
-  private String eventId;
+  private final Instant time;
+  private final String eventId;
+  private final String organizationId;
+  private final String segments;
 
-  @Column(name = "organizationId", tag = true)
-  private String organizationId;
-
-  @Column(name = "segments")
-  private String segments;
+  public SegmentsPOJO(final Instant time, final String eventId, final String organizationId,
+                      final String segments) {
+    this.time = time;
+    this.eventId = eventId;
+    this.organizationId = organizationId;
+    this.segments = segments;
+  }
 
   public Instant getTime() { return this.time; }
 
+  public String getEventId() { return this.eventId; }
+
+  public String getOrganizationId() { return this.organizationId; }
+
+  /**
+   * @return Raw value of the segments field, compact or as JSON array, see <code>SegmentCodec</code>
+   */
   public String getSegments() { return this.segments; }
+
+  /**
+   * @return Segment statistics as JSON array, whichever way they were encoded
+   * @throws com.google.gson.JsonSyntaxException If the field can't be decoded
+   */
+  public JsonArray getSegmentArray() { return SegmentCodec.decode(this.segments); }
+
+  private static String stringAt(final List<Object> row, final int index) {
+    return index >= 0 && row.get(index) != null ? row.get(index).toString() : null;
+  }
 }
@@ -21,17 +21,22 @@
 
 package org.opencastproject.matomoadapter.influxdbclient;
 
-import org.influxdb.dto.Point;
-
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Contains all necessary metadata regarding view, plays and finishes statistics to write to the InfluxDB (immutable).
  */
-public final class ViewImpression {
+public final class ViewImpression implements LineProtocolPoint {
+  private static final byte[] MEASUREMENT = LineProtocolEncoder.key("impressions_daily");
+  private static final byte[] TAG_EVENT = LineProtocolEncoder.key("eventId");
+  private static final byte[] TAG_ORGANIZATION = LineProtocolEncoder.key("organizationId");
+  private static final byte[] TAG_SERIES = LineProtocolEncoder.key("seriesId");
+  private static final byte[] FIELD_PLAYS = LineProtocolEncoder.key("plays");
+  private static final byte[] FIELD_VISITORS = LineProtocolEncoder.key("visitors");
+  private static final byte[] FIELD_FINISHES = LineProtocolEncoder.key("finishes");
+
   private final String eventId;
   private final String orgaId;
   private final String seriesId;
@@ -61,20 +66,19 @@ public final class ViewImpression {
   }
 
   /**
-   * Convert this impression into an InfluxDB point
-   * @return The InfluxDB point
+   * Encode this impression as InfluxDB point
+   * @param encoder Encoder of the current batch
    */
-  public Point toPoint() {
-    return Point
-            .measurement("impressions_daily")
-            .time(this.date.getEpochSecond(), TimeUnit.SECONDS)
-            .addField("plays", this.plays)
-            .addField("visitors", this.visitors)
-            .addField("finishes", this.finishes)
-            .tag("seriesId", this.seriesId)
-            .tag("organizationId", this.orgaId)
-            .tag("eventId", this.eventId)
-            .build();
+  @Override
+  public void writeTo(final LineProtocolEncoder encoder) {
+    encoder.measurement(MEASUREMENT)
+            .tag(TAG_EVENT, this.eventId)
+            .tag(TAG_ORGANIZATION, this.orgaId)
+            .tag(TAG_SERIES, this.seriesId)
+            .field(FIELD_PLAYS, this.plays)
+            .field(FIELD_VISITORS, this.visitors)
+            .field(FIELD_FINISHES, this.finishes)
+            .end(this.date.getEpochSecond());
   }
 
   @Override
@@ -21,15 +21,19 @@
 
 package org.opencastproject.matomoadapter.matclient;
 
+import org.opencastproject.matomoadapter.ClientConfigurationException;
+import org.opencastproject.matomoadapter.EventIdExtractor;
+import org.opencastproject.matomoadapter.HttpTimings;
 import org.opencastproject.matomoadapter.LimitInterceptor;
+import org.opencastproject.matomoadapter.TrafficArchive;
 
 import org.slf4j.Logger;
 
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 import devcsrj.okhttp3.logging.HttpLoggingInterceptor;
 import io.reactivex.Flowable;
-import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Response;
@@ -44,33 +48,81 @@ public final class MatomoClient {
   private static final String FILTER_PATTERN = "^[1-9]\\d*$";
   // Filter out unnecessary columns to shave of some weight from responses
   private static final String SHOW_COL = "label,nb_plays,nb_unique_visitors_impressions,nb_finishes";
+  // Sort order of paged listings. Pages are cut from the sorted list, so it must be stable between requests.
+  private static final String SORT_COL = "label";
+  private static final String SORT_ORDER = "asc";
+  // Number of remembered label-eventId pairs
+  private static final int LABEL_MEMO_SIZE = 4096;
 
   private final Logger logger;
   private final MatomoConfig matomoConfig;
   private final OkHttpClient httpClient;
   private final MatomoExternalAPI apiClient;
+  private final EventIdExtractor eventIdExtractor;
+  private final ResponseCache cache;
 
   /**
    * Create the client.
    *
    * @param matomoConfig Matomo configuration
+   * @param httpTimings Collector for HTTP phase timings, null if timing is disabled
+   * @param traffic Archive to record responses to or replay them from, null if disabled
    */
-  public MatomoClient(final MatomoConfig matomoConfig, final Logger logger) {
+  public MatomoClient(final MatomoConfig matomoConfig, final Logger logger,
+                      final HttpTimings httpTimings, final TrafficArchive traffic) {
     this.logger = logger;
     this.matomoConfig = matomoConfig;
     // Initialize HTTP client for Matomo network requests
-    final Interceptor interceptor = new HttpLoggingInterceptor();
     final OkHttpClient.Builder b = new OkHttpClient.Builder()
-            .addInterceptor(interceptor)
             // Set timeouts
             .connectTimeout(matomoConfig.getTimeout(), TimeUnit.SECONDS)
             .readTimeout(matomoConfig.getTimeout(), TimeUnit.SECONDS)
             .writeTimeout(matomoConfig.getTimeout(), TimeUnit.SECONDS);
+    // Recording and replaying sees exactly what the rest of the adapter sees
+    if (traffic != null)
+      b.addInterceptor(traffic);
+    // Responses for archived days are served from disk, before rate limiting and logging
+    this.cache = openCache(matomoConfig, logger);
+    if (this.cache != null)
+      b.addInterceptor(this.cache);
+    // Logging whole request and response bodies is expensive on large responses, so it is opt-in only
+    if (matomoConfig.isLogBodies())
+      b.addInterceptor(new HttpLoggingInterceptor());
+    // Per-phase timings are gathered from call events, without touching the bodies
+    if (httpTimings != null)
+      b.eventListenerFactory(httpTimings.listenerFactory());
     // Add rate limiter in case network traffic needs to be throttled
     this.httpClient = matomoConfig.getRate() != 0 ?
             b.addInterceptor(new LimitInterceptor(matomoConfig.getRate())).build() :
             b.build();
     this.apiClient = getClient();
+    this.eventIdExtractor = new EventIdExtractor(matomoConfig.getEventIdMarkers(), LABEL_MEMO_SIZE);
+  }
+
+  /**
+   * Open the response cache, if configured.
+   *
+   * @param matomoConfig Matomo configuration
+   * @param logger Logger
+   * @return The cache, or null if none is configured
+   */
+  private static ResponseCache openCache(final MatomoConfig matomoConfig, final Logger logger) {
+    if (matomoConfig.getCacheDir() == null)
+      return null;
+    try {
+      return new ResponseCache(matomoConfig.getCacheDir(), matomoConfig.getCacheMaxBytes(),
+              matomoConfig.getCacheHorizonDays(), logger);
+    } catch (final IOException e) {
+      throw new ClientConfigurationException("Can't open Matomo response cache: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Log response cache hits and misses since the last report, if the cache is enabled.
+   */
+  public void reportCache() {
+    if (this.cache != null)
+      this.cache.report();
   }
 
   /**
@@ -109,12 +161,39 @@ public final class MatomoClient {
       this.logger.debug("MATOMOREQUESTSTART, method: getVideoResources, date: {}", date);
       // If you wish to include episodes with 0 views, set FILTER_PATTERN to ""
       return this.apiClient.getResources(idSite, token, date, "1",
-              FILTER_PATTERN, "nb_plays", SHOW_COL, "");
+              FILTER_PATTERN, "nb_plays", SHOW_COL, "", "-1", null, null, null);
     }
     // Otherwise, request video statistics with given dimension, date and idSubtable
     this.logger.debug("MATOMOREQUESTSTART, method: getVideoResources ({}), date: {}, idSubtable: {}",
             dimension, date, idSubtable);
     return this.apiClient.getResources(idSite, token, date, idSubtable,
-            "", "", "", dimension);
+            "", "", "", dimension, "-1", null, null, null);
+  }
+
+  /**
+   * Send a HTTP GET request for one page of the list of all played episodes, see <code>getResourcesRequest</code>.
+   * The list is sorted by label, so that pages don't overlap.
+   *
+   * @param date Date for which statistics are requested. Expected format: YYYY-MM-DD
+   * @param offset Index of the first episode of the page
+   * @param limit Page size
+   * @return Raw response to the request (JSONArray/String)
+   */
+  Flowable<Response<ResponseBody>> getResourcesPageRequest(final String date, final int offset, final int limit) {
+    this.logger.debug("MATOMOREQUESTSTART, method: getVideoResources, date: {}, offset: {}", date, offset);
+    return this.apiClient.getResources(this.matomoConfig.getSiteId(), this.matomoConfig.getToken(), date, "1",
+            FILTER_PATTERN, "nb_plays", SHOW_COL, "", String.valueOf(limit), String.valueOf(offset),
+            SORT_COL, SORT_ORDER);
   }
+
+  /**
+   * @return Number of episodes per page of the day listing, 0 if the listing is fetched in one request
+   */
+  int getPageSize() { return this.matomoConfig.getPageSize(); }
+
+  int getPageConcurrency() { return this.matomoConfig.getPageConcurrency(); }
+
+  int getPageRetries() { return this.matomoConfig.getPageRetries(); }
+
+  public EventIdExtractor getEventIdExtractor() { return this.eventIdExtractor; }
 }
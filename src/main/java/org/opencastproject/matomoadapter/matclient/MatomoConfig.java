@@ -21,6 +21,9 @@
 
 package org.opencastproject.matomoadapter.matclient;
 
+import java.nio.file.Path;
+import java.util.List;
+
 /**
  * Represents all fields for Matomo's External API configuration (immutable)
  */
@@ -30,18 +33,42 @@ public final class MatomoConfig {
   private final String token;
   private final int rate;
   private final int timeout;
+  private final boolean logBodies;
+  private final List<String> eventIdMarkers;
+  private final int pageSize;
+  private final int pageConcurrency;
+  private final int pageRetries;
+  private final Path cacheDir;
+  private final long cacheMaxBytes;
+  private final int cacheHorizonDays;
 
   public MatomoConfig(
           final String uri,
           final String siteId,
           final String token,
           final int rate,
-          final int timeout) {
+          final int timeout,
+          final boolean logBodies,
+          final List<String> eventIdMarkers,
+          final int pageSize,
+          final int pageConcurrency,
+          final int pageRetries,
+          final Path cacheDir,
+          final long cacheMaxBytes,
+          final int cacheHorizonDays) {
     this.uri = uri;
     this.siteId = siteId;
     this.token = token;
     this.rate = rate;
     this.timeout = timeout;
+    this.logBodies = logBodies;
+    this.eventIdMarkers = eventIdMarkers;
+    this.pageSize = pageSize;
+    this.pageConcurrency = pageConcurrency;
+    this.pageRetries = pageRetries;
+    this.cacheDir = cacheDir;
+    this.cacheMaxBytes = cacheMaxBytes;
+    this.cacheHorizonDays = cacheHorizonDays;
   }
 
   String getUri() {
@@ -61,4 +88,20 @@ public final class MatomoConfig {
   }
 
   int getTimeout() { return this.timeout; }
+
+  boolean isLogBodies() { return this.logBodies; }
+
+  List<String> getEventIdMarkers() { return this.eventIdMarkers; }
+
+  int getPageSize() { return this.pageSize; }
+
+  int getPageConcurrency() { return this.pageConcurrency; }
+
+  int getPageRetries() { return this.pageRetries; }
+
+  Path getCacheDir() { return this.cacheDir; }
+
+  long getCacheMaxBytes() { return this.cacheMaxBytes; }
+
+  int getCacheHorizonDays() { return this.cacheHorizonDays; }
 }
@@ -32,7 +32,7 @@ import retrofit2.http.Query;
  */
 @FunctionalInterface
 public interface MatomoExternalAPI {
-  @GET("/?module=API&method=MediaAnalytics.getVideoResources&period=day&format=json&filter_limit=-1")
+  @GET("/?module=API&method=MediaAnalytics.getVideoResources&period=day&format=json")
   Flowable<Response<ResponseBody>> getResources(
           @Query("idSite") String idSite,
           @Query("token_auth") String token,
@@ -41,5 +41,9 @@ public interface MatomoExternalAPI {
           @Query("filter_pattern") String filterPat,
           @Query("filter_column") String filterCol,
           @Query("showColumns") String showCol,
-          @Query("secondaryDimension") String dimension);
+          @Query("secondaryDimension") String dimension,
+          @Query("filter_limit") String limit,
+          @Query("filter_offset") String offset,
+          @Query("filter_sort_column") String sortCol,
+          @Query("filter_sort_order") String sortOrder);
 }
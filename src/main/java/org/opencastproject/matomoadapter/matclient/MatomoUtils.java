@@ -36,6 +36,7 @@ import java.time.OffsetDateTime;
 import java.util.Objects;
 
 import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
 import okhttp3.ResponseBody;
 import retrofit2.Response;
 
@@ -59,6 +60,9 @@ public final class MatomoUtils {
                                                final OffsetDateTime date) {
     logger.info("Retrieving viewed episodes for date: {}", date);
 
+    if (client.getPageSize() > 0)
+      return getViewedPaged(logger, client, date);
+
     return getResources(logger, client, date, null, null)
             // Convert response body to JsonArray
             .map(MatomoUtils::getViewedJson)
@@ -68,6 +72,33 @@ public final class MatomoUtils {
             .map(JsonElement::getAsJsonObject);
   }
 
+  /**
+   * Fetch the list of viewed episodes in pages. Several pages are requested at once, but emitted in order.
+   * After the first page with less than a full page of episodes, no further pages are requested. A failed page
+   * is retried on its own.
+   *
+   * @param logger Logger for info/error logging
+   * @param client Matomo client instance
+   * @param date Date of request
+   * @return Returns Flowable with JSONObjects containing episode statistics
+   */
+  private static Flowable<JsonObject> getViewedPaged(final Logger logger, final MatomoClient client,
+                                                     final OffsetDateTime date) {
+    final String reqDate = date.toLocalDate().toString();
+    final int pageSize = client.getPageSize();
+    return Flowable.range(0, Integer.MAX_VALUE)
+            .concatMapEager(page -> Flowable.defer(() -> client.getResourcesPageRequest(reqDate,
+                    page * pageSize, pageSize))
+                    .concatMap(body -> MatomoUtils.checkResponseCode(logger, body))
+                    .map(MatomoUtils::getViewedJson)
+                    .retry(client.getPageRetries())
+                    .subscribeOn(Schedulers.io()), client.getPageConcurrency(), 1)
+            // A short page is the last one, pages requested after it are cancelled
+            .takeUntil(page -> page.size() < pageSize)
+            .flatMapIterable(json -> json)
+            .map(JsonElement::getAsJsonObject);
+  }
+
   /**
    * Invoke a request to the Matomo MediaAnalytics.getVideoResources API for segment statistics.
    *
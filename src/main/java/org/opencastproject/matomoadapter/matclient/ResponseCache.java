@@ -0,0 +1,246 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter.matclient;
+
+import com.google.common.hash.Hashing;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * HTTP interceptor caching Matomo responses on disk. Once Matomo has archived a day, its responses don't change
+ * anymore, so only requests for days older than the horizon are cached. Responses are keyed by a hash of all
+ * query parameters except the token (site, method, date, idSubtable, dimension, paging) and stored gzip
+ * compressed, one file per response. When the cache exceeds its size cap, the least recently used responses
+ * are deleted.
+ */
+public final class ResponseCache implements Interceptor {
+  private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+  private static final String SUFFIX = ".json.gz";
+  private static final String TOKEN = "token_auth";
+  // Matomo reports errors with status 200
+  private static final byte[] ERROR_PREFIX = "{\"result\":\"error\"".getBytes(StandardCharsets.UTF_8);
+
+  private final Path dir;
+  private final long maxBytes;
+  private final int horizonDays;
+  private final Logger logger;
+  // File name to compressed size, in access order
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private long totalBytes;
+  private long hits;
+  private long misses;
+
+  /**
+   * Open the cache directory and index the responses already in it.
+   *
+   * @param dir Cache directory, created if missing
+   * @param maxBytes Size cap of all compressed responses
+   * @param horizonDays Only days at least this many days in the past are cached
+   * @param logger Logger
+   * @throws IOException If the directory can't be read
+   */
+  public ResponseCache(final Path dir, final long maxBytes, final int horizonDays, final Logger logger)
+          throws IOException {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.horizonDays = horizonDays;
+    this.logger = logger;
+    Files.createDirectories(dir);
+    // Rebuild the LRU order from the modification times, which are updated on every hit
+    final List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      stream.forEach(files::add);
+    }
+    final TreeSet<Path> byAge = new TreeSet<>(Comparator.comparing((Path f) -> {
+      try {
+        return Files.getLastModifiedTime(f);
+      } catch (final IOException e) {
+        return FileTime.fromMillis(0L);
+      }
+    }).thenComparing(Path::toString));
+    byAge.addAll(files);
+    for (final Path f : byAge) {
+      final long size = Files.size(f);
+      this.entries.put(f.getFileName().toString(), size);
+      this.totalBytes += size;
+    }
+  }
+
+  @Override
+  public Response intercept(final Chain chain) throws IOException {
+    final Request request = chain.request();
+    final String name = cacheName(request.url());
+    if (name == null)
+      return chain.proceed(request);
+
+    final byte[] cached = read(name);
+    if (cached != null) {
+      return new Response.Builder()
+              .request(request)
+              .protocol(Protocol.HTTP_1_1)
+              .code(200)
+              .message("OK")
+              .header("X-Adapter-Cache", "hit")
+              .body(ResponseBody.create(JSON, cached))
+              .build();
+    }
+
+    final Response response = chain.proceed(request);
+    final ResponseBody body = response.body();
+    if (!response.isSuccessful() || body == null)
+      return response;
+    final MediaType type = body.contentType();
+    final byte[] bytes = body.bytes();
+    if (!startsWith(bytes, ERROR_PREFIX))
+      write(name, bytes);
+    return response.newBuilder().body(ResponseBody.create(type, bytes)).build();
+  }
+
+  /**
+   * Log hit and miss counts since the last report.
+   */
+  public synchronized void report() {
+    this.logger.info("MATOMOCACHE, hits: {}, misses: {}, entries: {}, size: {} bytes", this.hits, this.misses,
+            this.entries.size(), this.totalBytes);
+    this.hits = 0;
+    this.misses = 0;
+  }
+
+  /**
+   * @return File name for a cacheable request, or null if the request's date is too recent or missing
+   */
+  private String cacheName(final HttpUrl url) {
+    final String date = url.queryParameter("date");
+    if (date == null)
+      return null;
+    try {
+      if (LocalDate.parse(date).isAfter(LocalDate.now().minusDays(this.horizonDays)))
+        return null;
+    } catch (final DateTimeParseException e) {
+      return null;
+    }
+    final StringBuilder key = new StringBuilder(url.encodedPath());
+    for (final String param : new TreeSet<>(url.queryParameterNames())) {
+      if (param.equals(TOKEN))
+        continue;
+      key.append('&').append(param).append('=').append(url.queryParameterValues(param));
+    }
+    return Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + SUFFIX;
+  }
+
+  private byte[] read(final String name) {
+    synchronized (this) {
+      if (this.entries.get(name) == null) {
+        this.misses++;
+        return null;
+      }
+      this.hits++;
+    }
+    final Path file = this.dir.resolve(name);
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+      final byte[] bytes = in.readAllBytes();
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return bytes;
+    } catch (final IOException e) {
+      // Treat a broken entry as a miss, it is replaced by the next write
+      this.logger.warn("MATOMOCACHE, can't read {}: {}", name, e.getMessage());
+      synchronized (this) {
+        final Long size = this.entries.remove(name);
+        if (size != null)
+          this.totalBytes -= size;
+      }
+      return null;
+    }
+  }
+
+  private void write(final String name, final byte[] bytes) {
+    final Path file = this.dir.resolve(name);
+    final Path tmp = this.dir.resolve(name + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp))) {
+        out.write(bytes);
+      }
+      final long size = Files.size(tmp);
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      synchronized (this) {
+        final Long old = this.entries.put(name, size);
+        this.totalBytes += size - (old != null ? old : 0L);
+        evict();
+      }
+    } catch (final IOException e) {
+      // The cache is an optimization only, the response itself is fine
+      this.logger.warn("MATOMOCACHE, can't write {}: {}", name, e.getMessage());
+    }
+  }
+
+  /**
+   * Delete least recently used responses until the cache fits its size cap again.
+   */
+  private void evict() throws IOException {
+    final Iterator<Map.Entry<String, Long>> it = this.entries.entrySet().iterator();
+    while (this.totalBytes > this.maxBytes && it.hasNext()) {
+      final Map.Entry<String, Long> eldest = it.next();
+      Files.deleteIfExists(this.dir.resolve(eldest.getKey()));
+      this.totalBytes -= eldest.getValue();
+      it.remove();
+    }
+  }
+
+  private static boolean startsWith(final byte[] bytes, final byte[] prefix) {
+    if (bytes.length < prefix.length)
+      return false;
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[i] != prefix[i])
+        return false;
+    }
+    return true;
+  }
+}
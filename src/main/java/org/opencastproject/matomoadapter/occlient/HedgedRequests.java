@@ -0,0 +1,128 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter.occlient;
+
+import org.slf4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Hedges slow requests: if a request takes longer than a percentile of the recent latencies, a duplicate is
+ * sent and the first response wins, the other request is cancelled. The percentile is taken exactly over a
+ * sliding window of latencies, so it follows the server in long-running processes. Hedging only starts once
+ * enough latencies are observed, and at most the budget's share of all requests are hedged, so a slow server
+ * doesn't get twice the load.
+ * <p>
+ * A failed duplicate is ignored, the original request still counts.
+ */
+final class HedgedRequests {
+  private static final int MIN_SAMPLES = 50;
+  private static final int WINDOW = 1000;
+
+  private final double percentile;
+  private final int budgetPercent;
+  // Latencies of the most recent requests, in milliseconds
+  private final long[] latencies = new long[WINDOW];
+  private long samples;
+  private volatile long delay;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgesWon = new AtomicLong();
+
+  /**
+   * @param percentile Percentile of the observed latencies, after which a request is hedged
+   * @param budgetPercent Maximum share of requests hedged, in percent
+   */
+  HedgedRequests(final double percentile, final int budgetPercent) {
+    this.percentile = percentile;
+    this.budgetPercent = budgetPercent;
+  }
+
+  /**
+   * @param request Cold request, each subscription sends it again
+   * @return The request, hedged if it's slow
+   */
+  <T> Flowable<T> hedge(final Flowable<T> request) {
+    return Flowable.defer(() -> {
+      final long start = System.nanoTime();
+      this.requests.incrementAndGet();
+      final long delay = this.delay;
+      final Flowable<T> primary = request.doOnNext(r -> observe(start));
+      if (delay <= 0L)
+        return primary;
+      // The duplicate is a blocking call, it must not run on the timer's computation thread
+      final Flowable<T> duplicate = Flowable.timer(delay, TimeUnit.MILLISECONDS, Schedulers.io())
+              .flatMap(t -> {
+                if (!acquire())
+                  return Flowable.<T>never();
+                return request.doOnNext(r -> {
+                  this.hedgesWon.incrementAndGet();
+                  observe(start);
+                }).onErrorResumeNext(Flowable.<T>never());
+              });
+      // A synchronous call blocks its subscriber until the response is there, so the duplicate's timer has to
+      // be subscribed first
+      return Flowable.amb(Arrays.asList(duplicate, primary));
+    });
+  }
+
+  /**
+   * Log the hedges since the last report.
+   *
+   * @param logger Logger
+   */
+  void report(final Logger logger) {
+    final long sent = this.hedges.getAndSet(0L);
+    logger.info("OCHEDGE, requests: {}, hedged: {}, hedge won: {}, hedge after: {}ms", this.requests.getAndSet(0L),
+            sent, this.hedgesWon.getAndSet(0L), this.delay);
+  }
+
+  private boolean acquire() {
+    while (true) {
+      final long sent = this.hedges.get();
+      if ((sent + 1) * 100 > this.requests.get() * this.budgetPercent)
+        return false;
+      if (this.hedges.compareAndSet(sent, sent + 1))
+        return true;
+    }
+  }
+
+  private void observe(final long start) {
+    final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    synchronized (this.latencies) {
+      this.latencies[(int) (this.samples % WINDOW)] = millis;
+      this.samples++;
+      // Sorting the window for every request would cost more than it's worth, the delay is updated in steps
+      if (this.samples % MIN_SAMPLES != 0)
+        return;
+      final long[] sorted = Arrays.copyOf(this.latencies, (int) Math.min(this.samples, WINDOW));
+      Arrays.sort(sorted);
+      final int rank = (int) Math.ceil(sorted.length * this.percentile / 100.0);
+      this.delay = sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+  }
+}
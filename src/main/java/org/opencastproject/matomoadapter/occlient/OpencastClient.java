@@ -21,10 +21,9 @@
 
 package org.opencastproject.matomoadapter.occlient;
 
+import org.opencastproject.matomoadapter.HttpTimings;
 import org.opencastproject.matomoadapter.LimitInterceptor;
-
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import org.opencastproject.matomoadapter.TrafficArchive;
 
 import org.slf4j.Logger;
 
@@ -35,7 +34,6 @@ import java.util.concurrent.TimeUnit;
 
 import devcsrj.okhttp3.logging.HttpLoggingInterceptor;
 import io.reactivex.Flowable;
-import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Response;
@@ -51,35 +49,46 @@ public final class OpencastClient {
   private final OpencastConfig opencastConfig;
   private final OkHttpClient httpClient;
   private final HashMap<String, OpencastExternalAPI> apiClients;
-  private final Cache<String, String> cache;
+  private final SeriesCache cache;
+  private final HedgedRequests hedging;
 
   /**
    * Create the client. If needed, additionally initialize a rate limiter and cache.
    *
    * @param opencastConfig Opencast configuration
+   * @param httpTimings Collector for HTTP phase timings, null if timing is disabled
+   * @param traffic Archive to record responses to or replay them from, null if disabled
    */
-  public OpencastClient(final OpencastConfig opencastConfig, final Logger logger) {
+  public OpencastClient(final OpencastConfig opencastConfig, final Logger logger,
+                        final HttpTimings httpTimings, final TrafficArchive traffic) {
     this.logger = logger;
     this.opencastConfig = opencastConfig;
     this.apiClients = new HashMap<>();
     // Initialize HTTP client for Opencast network requests
-    final Interceptor interceptor = new HttpLoggingInterceptor();
     final OkHttpClient.Builder b = new OkHttpClient.Builder()
-            .addInterceptor(interceptor)
             // Set timeouts
             .connectTimeout(opencastConfig.getTimeout(), TimeUnit.SECONDS)
             .readTimeout(opencastConfig.getTimeout(), TimeUnit.SECONDS)
             .writeTimeout(opencastConfig.getTimeout(), TimeUnit.SECONDS);
+    // Recording and replaying sees exactly what the rest of the adapter sees
+    if (traffic != null)
+      b.addInterceptor(traffic);
+    // Logging whole request and response bodies is expensive on large responses, so it is opt-in only
+    if (opencastConfig.isLogBodies())
+      b.addInterceptor(new HttpLoggingInterceptor());
+    // Per-phase timings are gathered from call events, without touching the bodies
+    if (httpTimings != null)
+      b.eventListenerFactory(httpTimings.listenerFactory());
     // Add rate limiter in case network traffic needs to be throttled
     this.httpClient = opencastConfig.getRate() != 0 ?
             b.addInterceptor(new LimitInterceptor(opencastConfig.getRate())).build() :
             b.build();
     // Initialize cache, if needed
     this.cache = !opencastConfig.getCacheDuration().isZero() && opencastConfig.getCacheSize() != 0 ?
-            CacheBuilder.newBuilder()
-                    .expireAfterAccess(opencastConfig.getCacheDuration())
-                    .maximumSize(opencastConfig.getCacheSize())
-                    .build() : null;
+            new SeriesCache(opencastConfig.getCacheSize(), opencastConfig.getCacheDuration()) : null;
+    // Initialize hedging of slow requests, if needed
+    this.hedging = opencastConfig.getHedgePercentile() != 0 ?
+            new HedgedRequests(opencastConfig.getHedgePercentile(), opencastConfig.getHedgeBudget()) : null;
   }
 
   /**
@@ -108,7 +117,16 @@ public final class OpencastClient {
    */
   Flowable<Response<ResponseBody>> getEventRequest(final String orgaId, final String eventId) {
     this.logger.debug("OCREQUESTSTART, episode {}, organization {}", eventId, orgaId);
-    return getClient(orgaId).getEvent(eventId, getAuthHeader());
+    final Flowable<Response<ResponseBody>> request = getClient(orgaId).getEvent(eventId, getAuthHeader());
+    return this.hedging != null ? this.hedging.hedge(request) : request;
+  }
+
+  /**
+   * Log the hedged requests since the last report, if hedging is enabled.
+   */
+  public void reportHedging() {
+    if (this.hedging != null)
+      this.hedging.report(this.logger);
   }
 
   private String getAuthHeader() {
@@ -123,7 +141,7 @@ public final class OpencastClient {
 
   public String getOrgaId() { return this.opencastConfig.getOrgaId(); }
 
-  Cache<String, String> getCache() {
+  SeriesCache getCache() {
     return this.cache;
   }
 }
@@ -35,6 +35,9 @@ public final class OpencastConfig {
   private final Duration cacheDuration;
   private final int rate;
   private final int timeout;
+  private final boolean logBodies;
+  private final int hedgePercentile;
+  private final int hedgeBudget;
 
   public OpencastConfig(
           final String uri,
@@ -44,7 +47,10 @@ public final class OpencastConfig {
           final int cacheSize,
           final Duration cacheDuration,
           final int rate,
-          final int timeout) {
+          final int timeout,
+          final boolean logBodies,
+          final int hedgePercentile,
+          final int hedgeBudget) {
     this.uri = uri;
     this.user = user;
     this.password = password;
@@ -53,6 +59,9 @@ public final class OpencastConfig {
     this.cacheDuration = cacheDuration;
     this.rate = rate;
     this.timeout = timeout;
+    this.logBodies = logBodies;
+    this.hedgePercentile = hedgePercentile;
+    this.hedgeBudget = hedgeBudget;
   }
 
   String getUri() {
@@ -80,4 +89,10 @@ public final class OpencastConfig {
   int getRate() { return this.rate; }
 
   int getTimeout() { return this.timeout; }
+
+  boolean isLogBodies() { return this.logBodies; }
+
+  int getHedgePercentile() { return this.hedgePercentile; }
+
+  int getHedgeBudget() { return this.hedgeBudget; }
 }
@@ -24,7 +24,6 @@ package org.opencastproject.matomoadapter.occlient;
 import org.opencastproject.matomoadapter.InvalidHttpResponseException;
 import org.opencastproject.matomoadapter.ParsingJsonSyntaxException;
 
-import com.google.common.cache.Cache;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
@@ -56,7 +55,7 @@ public final class OpencastUtils {
    */
   public static Flowable<String> seriesForEvent(final Logger logger, final OpencastClient client,
                                                  final String orgaId, final String eventId) {
-    final Cache<String, String> cache = client.getCache();
+    final SeriesCache cache = client.getCache();
     // Check if cache exists and then check, if the eventId is already stored
     final String cachedId = cache != null ? cache.getIfPresent(eventId) : null;
     // If the eventId already has an entry with a corresponding seriesId, return seriesId
@@ -0,0 +1,260 @@
+/*
+ * Licensed to The Apereo Foundation under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ *
+ * The Apereo Foundation licenses this file to you under the Educational
+ * Community License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License
+ * at:
+ *
+ *   http://opensource.org/licenses/ecl2.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+package org.opencastproject.matomoadapter.occlient;
+
+import org.opencastproject.matomoadapter.Uuids;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact eventId to seriesId cache. EventIds are stored as two longs in open-addressing (linear probing)
+ * arrays, seriesIds are interned into a dictionary and referenced by an int code. A slot costs 25 bytes of
+ * array space, instead of two Strings plus the cache entry objects per entry.
+ * <p>
+ * Entries expire a given duration after their last access. When the maximum size is reached, an entry is
+ * evicted with the CLOCK algorithm, which approximates LRU. EventIds that aren't UUIDs are not cached.
+ * Series of removed entries stay in the dictionary, until it outgrows the table and is rebuilt from the live
+ * entries.
+ */
+final class SeriesCache {
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int EMPTY = 0;
+
+  private final int maxSize;
+  private final long expireNanos;
+  private final long baseNanos;
+  // Series dictionary, a code is the index in seriesNames plus one, so that 0 marks empty slots
+  private Map<String, Integer> seriesCodes = new HashMap<>();
+  private List<String> seriesNames = new ArrayList<>();
+
+  private long[] high;
+  private long[] low;
+  private int[] series;
+  // Seconds since baseNanos of the last access
+  private int[] accessed;
+  private boolean[] referenced;
+  private int size;
+  private int hand;
+
+  SeriesCache(final int maxSize, final Duration expiration) {
+    this.maxSize = maxSize;
+    this.expireNanos = expiration.toNanos();
+    this.baseNanos = System.nanoTime();
+    allocate(Math.min(INITIAL_CAPACITY, capacityFor(maxSize)));
+  }
+
+  /**
+   * @param eventId Opencast eventId
+   * @return Cached seriesId, or null if absent or expired
+   */
+  synchronized String getIfPresent(final String eventId) {
+    if (!Uuids.isUuid(eventId))
+      return null;
+    final int slot = find(Uuids.high(eventId), Uuids.low(eventId));
+    if (slot < 0)
+      return null;
+    final int now = now();
+    if ((long) (now - this.accessed[slot]) * 1_000_000_000L > this.expireNanos) {
+      remove(slot);
+      return null;
+    }
+    this.accessed[slot] = now;
+    this.referenced[slot] = true;
+    return this.seriesNames.get(this.series[slot] - 1);
+  }
+
+  /**
+   * Store or replace a mapping. Evicts one entry, if the cache is full.
+   *
+   * @param eventId Opencast eventId
+   * @param seriesId The episode's seriesId
+   */
+  synchronized void put(final String eventId, final String seriesId) {
+    if (!Uuids.isUuid(eventId))
+      return;
+    final long h = Uuids.high(eventId);
+    final long l = Uuids.low(eventId);
+    final int code = intern(seriesId);
+    final int existing = find(h, l);
+    if (existing >= 0) {
+      this.series[existing] = code;
+      this.accessed[existing] = now();
+      this.referenced[existing] = true;
+      return;
+    }
+    if (this.size >= this.maxSize)
+      evict();
+    if ((this.size + 1) * 4L > this.high.length * 3L)
+      resize(this.high.length * 2);
+    int slot = index(h, l);
+    while (this.series[slot] != EMPTY)
+      slot = (slot + 1) & (this.high.length - 1);
+    this.high[slot] = h;
+    this.low[slot] = l;
+    this.series[slot] = code;
+    this.accessed[slot] = now();
+    this.referenced[slot] = false;
+    this.size++;
+  }
+
+  synchronized int size() {
+    return this.size;
+  }
+
+  private int intern(final String seriesId) {
+    final Integer known = this.seriesCodes.get(seriesId);
+    if (known != null)
+      return known;
+    // The table is at most three quarters full, so a rebuild is paid for by a quarter table length of new series
+    if (this.seriesNames.size() >= this.high.length)
+      rebuildSeries();
+    this.seriesNames.add(seriesId);
+    this.seriesCodes.put(seriesId, this.seriesNames.size());
+    return this.seriesNames.size();
+  }
+
+  /**
+   * Drop the series no entry references anymore from the dictionary, and recode the entries.
+   */
+  private void rebuildSeries() {
+    final List<String> oldNames = this.seriesNames;
+    final int[] recoded = new int[oldNames.size() + 1];
+    this.seriesNames = new ArrayList<>();
+    this.seriesCodes = new HashMap<>();
+    for (int i = 0; i < this.series.length; i++) {
+      if (this.series[i] == EMPTY)
+        continue;
+      if (recoded[this.series[i]] == EMPTY) {
+        final String name = oldNames.get(this.series[i] - 1);
+        this.seriesNames.add(name);
+        this.seriesCodes.put(name, this.seriesNames.size());
+        recoded[this.series[i]] = this.seriesNames.size();
+      }
+      this.series[i] = recoded[this.series[i]];
+    }
+  }
+
+  private int find(final long h, final long l) {
+    final int mask = this.high.length - 1;
+    int slot = index(h, l);
+    while (this.series[slot] != EMPTY) {
+      if (this.high[slot] == h && this.low[slot] == l)
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * CLOCK eviction: recently referenced entries get a second chance, the first unreferenced one is removed.
+   */
+  private void evict() {
+    final int mask = this.high.length - 1;
+    while (true) {
+      this.hand = (this.hand + 1) & mask;
+      if (this.series[this.hand] == EMPTY)
+        continue;
+      if (this.referenced[this.hand]) {
+        this.referenced[this.hand] = false;
+      } else {
+        remove(this.hand);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Remove a slot and shift following entries of the probe sequence back, so no tombstones are needed.
+   */
+  private void remove(final int slot) {
+    final int mask = this.high.length - 1;
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (this.series[next] != EMPTY) {
+      final int home = index(this.high[next], this.low[next]);
+      // Move the entry into the gap, if its home slot is not between gap (exclusive) and next (inclusive)
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        this.high[gap] = this.high[next];
+        this.low[gap] = this.low[next];
+        this.series[gap] = this.series[next];
+        this.accessed[gap] = this.accessed[next];
+        this.referenced[gap] = this.referenced[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    this.series[gap] = EMPTY;
+    this.size--;
+  }
+
+  private void resize(final int capacity) {
+    final long[] oldHigh = this.high;
+    final long[] oldLow = this.low;
+    final int[] oldSeries = this.series;
+    final int[] oldAccessed = this.accessed;
+    final boolean[] oldReferenced = this.referenced;
+    allocate(capacity);
+    for (int i = 0; i < oldHigh.length; i++) {
+      if (oldSeries[i] == EMPTY)
+        continue;
+      int slot = index(oldHigh[i], oldLow[i]);
+      while (this.series[slot] != EMPTY)
+        slot = (slot + 1) & (capacity - 1);
+      this.high[slot] = oldHigh[i];
+      this.low[slot] = oldLow[i];
+      this.series[slot] = oldSeries[i];
+      this.accessed[slot] = oldAccessed[i];
+      this.referenced[slot] = oldReferenced[i];
+    }
+    this.hand = 0;
+  }
+
+  private void allocate(final int capacity) {
+    this.high = new long[capacity];
+    this.low = new long[capacity];
+    this.series = new int[capacity];
+    this.accessed = new int[capacity];
+    this.referenced = new boolean[capacity];
+  }
+
+  private int index(final long h, final long l) {
+    long x = h ^ Long.rotateLeft(l, 32);
+    x *= 0x9E3779B97F4A7C15L;
+    return (int) (x >>> 32) & (this.high.length - 1);
+  }
+
+  private int now() {
+    return (int) ((System.nanoTime() - this.baseNanos) / 1_000_000_000L);
+  }
+
+  /**
+   * Smallest power of two keeping the load factor at or below 0.75 for the given number of entries.
+   */
+  private static int capacityFor(final int entries) {
+    final long needed = Math.max(2L, entries * 4L / 3L + 1L);
+    return (int) Math.min(1L << 30, Long.highestOneBit(needed - 1) << 1);
+  }
+}